@@ -0,0 +1,260 @@
+/*
+ * Activity analytics
+ * =============================
+ *
+ * Approximate "who is most active" counts without GROUP BY scans, fed from
+ * the write and read paths:
+ *
+ *    senders     messages sent, per sender
+ *    requesters  connection requests sent, per sender
+ *    profiles    profile views, per viewed user
+ *
+ * Each stream keeps a sliding window of count-min sketches, one per time
+ * slice (12 slices of 5 minutes by default), and a bounded set of heavy
+ * hitter candidates, kept by id in the shared UserIds dictionary. Counts
+ * never under-estimate; memory does not grow with the number of users.
+ * Updates are atomic increments, with no locks.
+ *
+ * A snapshot of the top users of each stream is available on demand and,
+ * with -Dprofnetwork.activityLog=<file>, appended to a file every
+ * -Dprofnetwork.activityLogSeconds (default 60).
+ *
+ */
+
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding-window count-min sketches with top-k heavy hitters.
+ */
+public class ActivityStats {
+
+   /**
+    * The activity streams counted.
+    */
+   public enum Stream { SENDERS, REQUESTERS, PROFILES }
+
+   // sketch shape: ~0.1% over-count per slice with 99.9% confidence
+   private static final int DEPTH = 7;
+   private static final int WIDTH = 2048;
+
+   private static final int SLICES = 12;
+   private static final long SLICE_MILLIS = Long.getLong("profnetwork.activitySliceMs", 5 * 60 * 1000L);
+
+   // heavy hitters reported, and candidates kept to find them
+   public static final int TOP_K = 10;
+   private static final int CANDIDATES = TOP_K * 8;
+
+   /**
+    * A user and their estimated count over the window.
+    */
+   public static class Count {
+      public final String userId;
+      public final long count;
+
+      Count(String userId, long count){
+         this.userId = userId;
+         this.count = count;
+      }
+
+      public String toString(){
+         return this.userId + "=" + this.count;
+      }
+   }//end Count
+
+   /**
+    * One stream: a ring of sketches, one per slice, and its candidates.
+    */
+   private static class Window {
+      private final AtomicLongArray[] _sketches = new AtomicLongArray[SLICES];
+      private final AtomicLong[] _sliceOf = new AtomicLong[SLICES];
+      private final Map<Integer, Long> _candidates = new ConcurrentHashMap<Integer, Long>();
+
+      Window(){
+         for (int s = 0; s < SLICES; s++){
+            this._sketches[s] = new AtomicLongArray(DEPTH * WIDTH);
+            this._sliceOf[s] = new AtomicLong(-1);
+         }//end for
+      }
+
+      void add(int key, long amount, long now){
+         long slice = now / SLICE_MILLIS;
+         int s = (int) (slice % SLICES);
+         long held = this._sliceOf[s].get();
+         // first update in a new slice recycles the oldest sketch; updates
+         // racing the reset may be lost, which only lowers an estimate briefly
+         if (held != slice && this._sliceOf[s].compareAndSet(held, slice)){
+            AtomicLongArray sketch = this._sketches[s];
+            for (int i = 0; i < sketch.length(); i++)
+               sketch.set(i, 0);
+            refresh(now);
+         }//end if
+
+         long h = hash(key);
+         int h1 = (int) (h >>> 32), h2 = (int) h;
+         AtomicLongArray sketch = this._sketches[s];
+         for (int d = 0; d < DEPTH; d++)
+            sketch.addAndGet(d * WIDTH + Math.floorMod(h1 + d * h2, WIDTH), amount);
+
+         long estimate = estimate(key, now);
+         if (this._candidates.containsKey(key) || this._candidates.size() < CANDIDATES){
+            this._candidates.put(key, estimate);
+         }else{
+            // replace the weakest candidate if this key now beats it; its
+            // stored count may predate slices that have since expired
+            Map.Entry<Integer, Long> weakest = null;
+            for (Map.Entry<Integer, Long> e : this._candidates.entrySet())
+               if (weakest == null || e.getValue() < weakest.getValue())
+                  weakest = e;
+            if (weakest != null){
+               long current = estimate(weakest.getKey(), now);
+               if (estimate > current && this._candidates.remove(weakest.getKey(), weakest.getValue()))
+                  this._candidates.put(key, estimate);
+               else if (current != weakest.getValue())
+                  this._candidates.replace(weakest.getKey(), weakest.getValue(), current);
+            }//end if
+         }//end if
+      }//end add
+
+      // re-estimates every candidate over the live slices, dropping those
+      // whose activity has left the window, so they stop blocking new ones
+      private void refresh(long now){
+         for (Map.Entry<Integer, Long> e : this._candidates.entrySet()){
+            long current = estimate(e.getKey(), now);
+            if (current == 0) this._candidates.remove(e.getKey(), e.getValue());
+            else this._candidates.replace(e.getKey(), e.getValue(), current);
+         }//end for
+      }//end refresh
+
+      // sum over the live slices of the smallest counter of the key
+      long estimate(int key, long now){
+         long current = now / SLICE_MILLIS;
+         long h = hash(key);
+         int h1 = (int) (h >>> 32), h2 = (int) h;
+         long total = 0;
+         for (int s = 0; s < SLICES; s++){
+            long slice = this._sliceOf[s].get();
+            if (slice < 0 || current - slice >= SLICES) continue;
+            long min = Long.MAX_VALUE;
+            for (int d = 0; d < DEPTH; d++)
+               min = Math.min(min, this._sketches[s].get(d * WIDTH + Math.floorMod(h1 + d * h2, WIDTH)));
+            total += min;
+         }//end for
+         return total;
+      }//end estimate
+
+      List<Count> top(int k, long now, UserIds dict){
+         List<Count> counts = new ArrayList<Count>();
+         for (int key : this._candidates.keySet()){
+            long c = estimate(key, now);
+            if (c > 0) counts.add(new Count(dict.name(key), c));
+         }//end for
+         Collections.sort(counts, (a, b) -> a.count != b.count
+            ? Long.compare(b.count, a.count) : a.userId.compareTo(b.userId));
+         return counts.size() > k ? new ArrayList<Count>(counts.subList(0, k)) : counts;
+      }//end top
+   }//end Window
+
+   private final UserIds _dict;
+   private final Window[] _windows = new Window[Stream.values().length];
+   private ScheduledExecutorService _snapshots;
+
+   public ActivityStats(UserIds dict){
+      this._dict = dict;
+      for (Stream s : Stream.values())
+         this._windows[s.ordinal()] = new Window();
+   }
+
+   /**
+    * Counts one event of a stream for a user.
+    */
+   public void record(Stream stream, String userId){
+      record(stream, userId, 1);
+   }//end record
+
+   /**
+    * Counts several events of a stream for a user.
+    */
+   public void record(Stream stream, String userId, long amount){
+      if (userId == null || amount <= 0) return;
+      this._windows[stream.ordinal()].add(this._dict.intern(userId), amount, System.currentTimeMillis());
+   }//end record
+
+   /**
+    * @return the estimated count of a user in a stream over the window
+    */
+   public long estimate(Stream stream, String userId){
+      int u = this._dict.id(userId);
+      return u < 0 ? 0 : this._windows[stream.ordinal()].estimate(u, System.currentTimeMillis());
+   }//end estimate
+
+   /**
+    * @return up to k of the most active users of a stream, most active first
+    */
+   public List<Count> top(Stream stream, int k){
+      return this._windows[stream.ordinal()].top(k, System.currentTimeMillis(), this._dict);
+   }//end top
+
+   /**
+    * @return the top users of every stream, one line per stream
+    */
+   public String snapshot(){
+      StringBuilder sb = new StringBuilder();
+      for (Stream s : Stream.values())
+         sb.append(s.name().toLowerCase()).append(": ").append(top(s, TOP_K)).append('\n');
+      return sb.toString();
+   }//end snapshot
+
+   /**
+    * Starts appending snapshots to the file named by profnetwork.activityLog,
+    * if it is set.
+    */
+   public synchronized void startSnapshots(){
+      final String file = System.getProperty("profnetwork.activityLog");
+      if (file == null || this._snapshots != null) return;
+      long seconds = Long.getLong("profnetwork.activityLogSeconds", 60L);
+      this._snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "activity-snapshots");
+         t.setDaemon(true);
+         return t;
+      });
+      this._snapshots.scheduleAtFixedRate(() -> {
+         try{
+            PrintWriter out = new PrintWriter(new FileWriter(file, true));
+            try{
+               out.print("# " + new Date() + "\n" + snapshot());
+            }finally{
+               out.close();
+            }//end try
+         }catch (IOException e){
+            System.err.println("Unable to write activity snapshot: " + e.getMessage());
+         }//end try
+      }, seconds, seconds, TimeUnit.SECONDS);
+   }//end startSnapshots
+
+   // 64-bit mix of the dense id (murmur3 finalizer); the halves drive the
+   // row hashes
+   private static long hash(int key){
+      long h = key + 0x9e3779b97f4a7c15L;
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }//end hash
+
+}//end ActivityStats
@@ -0,0 +1,269 @@
+/*
+ * Admission control
+ * =============================
+ *
+ * Keeps expensive operations from starving cheap ones. Every operation has
+ * a cost class, and two checks apply before it may run:
+ *
+ *    per user   a token bucket; each operation takes its class's cost in
+ *               tokens, and an empty bucket rejects at once (rate limit).
+ *               Tokens of an operation rejected by the class check below
+ *               are given back
+ *    per class  a global limit on operations of that class running at
+ *               once; excess work waits in a short queue, and is rejected
+ *               when the queue is full or the wait runs out
+ *
+ * Rejections are SQLExceptions whose message says what to do, so callers'
+ * existing error handling reports them.
+ *
+ * An admitted operation also gets its class's latency budget: until the
+ * ticket is released, statements on the thread (and on pooled sessions
+ * working for it, see AsyncPool) time out when the budget runs out, and
+ * hedged reads use the class's recent p99 (see HedgedReads).
+ *
+ * Limits can be turned off with -Dprofnetwork.admission=false; budgets
+ * still apply. Budgets are set per class in milliseconds with
+ * -Dprofnetwork.budget.cheap, .normal and .expensive.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets per user and concurrency limits per cost class.
+ */
+public class AdmissionControl {
+
+   /**
+    * Cost classes: tokens taken per operation, operations of the class
+    * running at once, operations allowed to wait, how long they wait, and
+    * how long an admitted operation may take.
+    */
+   public enum Cost {
+      CHEAP(1, 16, 64, 2000, 5000),
+      NORMAL(2, 8, 32, 1000, 10000),
+      EXPENSIVE(5, 2, 4, 500, 30000);
+
+      final int tokens;
+      final int concurrency;
+      final int maxQueued;
+      final long maxWaitMillis;
+      final long budgetMillis;
+
+      Cost(int tokens, int concurrency, int maxQueued, long maxWaitMillis, long budgetMillis){
+         this.tokens = tokens;
+         this.concurrency = concurrency;
+         this.maxQueued = maxQueued;
+         this.maxWaitMillis = maxWaitMillis;
+         this.budgetMillis = Long.getLong("profnetwork.budget." + name().toLowerCase(), budgetMillis);
+      }
+   }//end Cost
+
+   // per user bucket: a burst of 30 tokens, refilled at 10 tokens a second
+   private static final double BUCKET_CAPACITY = 30;
+   private static final double REFILL_PER_SECOND = 10;
+
+   /**
+    * Raised when an operation is not admitted.
+    */
+   public static class Rejected extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      Rejected(String message){
+         super(message, "53400");   // configuration_limit_exceeded
+      }
+   }//end Rejected
+
+   /**
+    * The cost class and deadline of the operation a thread is running.
+    */
+   public static final class Budget {
+      final Cost cost;
+      final long deadlineNanos;
+
+      Budget(Cost cost, long deadlineNanos){
+         this.cost = cost;
+         this.deadlineNanos = deadlineNanos;
+      }
+
+      /**
+       * @return milliseconds left before the deadline, negative once it passed
+       */
+      public long remainingMillis(){
+         return (this.deadlineNanos - System.nanoTime()) / 1000000L;
+      }//end remainingMillis
+   }//end Budget
+
+   // the budget of the operation the current thread is running
+   private static final ThreadLocal<Budget> budget = new ThreadLocal<Budget>();
+
+   /**
+    * Permission to run one operation; release() it when the operation ends,
+    * on the thread that was admitted. Until then the thread runs under the
+    * operation's budget.
+    */
+   public static class Ticket {
+      private final Semaphore _slots;
+      private final Budget _outer;
+      private boolean _released;
+
+      Ticket(Semaphore slots, Cost cost){
+         this._slots = slots;
+         this._outer = budget.get();
+         long deadline = System.nanoTime() + cost.budgetMillis * 1000000L;
+         // an operation run inside another keeps the tighter deadline
+         if (this._outer != null && this._outer.deadlineNanos - deadline < 0)
+            deadline = this._outer.deadlineNanos;
+         budget.set(new Budget(cost, deadline));
+      }
+
+      public synchronized void release(){
+         if (this._released) return;
+         this._released = true;
+         if (this._outer == null)
+            budget.remove();
+         else
+            budget.set(this._outer);
+         if (this._slots != null) this._slots.release();
+      }//end release
+   }//end Ticket
+
+   /**
+    * @return the budget of the operation running on this thread, null if none
+    */
+   public static Budget currentBudget(){
+      return budget.get();
+   }//end currentBudget
+
+   /**
+    * Runs this thread under another thread's budget, for work done on its
+    * behalf; null clears it.
+    */
+   static void setCurrentBudget(Budget current){
+      if (current == null)
+         budget.remove();
+      else
+         budget.set(current);
+   }//end setCurrentBudget
+
+   private static class Bucket {
+      private double _tokens = BUCKET_CAPACITY;
+      private long _refilled = System.nanoTime();
+
+      // takes the tokens, or returns the millis until they will be there
+      synchronized long take(int tokens){
+         long now = System.nanoTime();
+         this._tokens = Math.min(BUCKET_CAPACITY, this._tokens + (now - this._refilled) / 1e9 * REFILL_PER_SECOND);
+         this._refilled = now;
+         if (this._tokens >= tokens){
+            this._tokens -= tokens;
+            return 0;
+         }//end if
+         return (long) Math.ceil((tokens - this._tokens) / REFILL_PER_SECOND * 1000);
+      }//end take
+
+      // gives back tokens taken for an operation that did not run
+      synchronized void refund(int tokens){
+         this._tokens = Math.min(BUCKET_CAPACITY, this._tokens + tokens);
+      }//end refund
+   }//end Bucket
+
+   private volatile boolean _enabled;
+   private final Map<String, Bucket> _buckets = new ConcurrentHashMap<String, Bucket>();
+   private final Semaphore[] _slots = new Semaphore[Cost.values().length];
+   private final AtomicInteger[] _queued = new AtomicInteger[Cost.values().length];
+   private final AtomicLong[] _admitted = new AtomicLong[Cost.values().length];
+   private final AtomicLong[] _shed = new AtomicLong[Cost.values().length];
+
+   public AdmissionControl(){
+      this(!"false".equals(System.getProperty("profnetwork.admission")));
+   }
+
+   AdmissionControl(boolean enabled){
+      this._enabled = enabled;
+      for (Cost c : Cost.values()){
+         this._slots[c.ordinal()] = new Semaphore(c.concurrency, true);
+         this._queued[c.ordinal()] = new AtomicInteger();
+         this._admitted[c.ordinal()] = new AtomicLong();
+         this._shed[c.ordinal()] = new AtomicLong();
+      }//end for
+   }
+
+   /**
+    * Turns the limits on or off; off admits everything at once.
+    */
+   public void setEnabled(boolean enabled){
+      this._enabled = enabled;
+   }//end setEnabled
+
+   /**
+    * Admits an operation of the given class for a user, waiting briefly for
+    * a slot when the class is busy.
+    *
+    * @param userId the user the operation runs for, null to skip the rate limit
+    * @param cost the operation's cost class
+    * @return the ticket to release when the operation ends
+    * @throws AdmissionControl.Rejected when the user is over their rate or the class stays busy
+    */
+   public Ticket admit(String userId, Cost cost) throws Rejected {
+      if (!this._enabled) return new Ticket(null, cost);
+      int c = cost.ordinal();
+
+      Bucket bucket = userId == null ? null : this._buckets.computeIfAbsent(userId.trim(), k -> new Bucket());
+      long wait = bucket == null ? 0 : bucket.take(cost.tokens);
+      if (wait > 0){
+         this._shed[c].incrementAndGet();
+         throw new Rejected(String.format("Too many requests, please try again in %.1f seconds", wait / 1000.0));
+      }//end if
+
+      Semaphore slots = this._slots[c];
+      if (!slots.tryAcquire()){
+         if (this._queued[c].incrementAndGet() > cost.maxQueued){
+            this._queued[c].decrementAndGet();
+            throw busy(bucket, cost);
+         }//end if
+         try{
+            if (!slots.tryAcquire(cost.maxWaitMillis, TimeUnit.MILLISECONDS))
+               throw busy(bucket, cost);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            if (bucket != null) bucket.refund(cost.tokens);
+            throw new Rejected("Interrupted while waiting to run");
+         }finally{
+            this._queued[c].decrementAndGet();
+         }//end try
+      }//end if
+      this._admitted[c].incrementAndGet();
+      return new Ticket(slots, cost);
+   }//end admit
+
+   // the class stayed busy: the operation does not run, so the user gets
+   // its tokens back
+   private Rejected busy(Bucket bucket, Cost cost){
+      if (bucket != null) bucket.refund(cost.tokens);
+      this._shed[cost.ordinal()].incrementAndGet();
+      return new Rejected("The server is busy, please try again shortly");
+   }//end busy
+
+   /**
+    * @return admitted and shed counts per class, for reports
+    */
+   public String stats(){
+      StringBuilder sb = new StringBuilder();
+      for (Cost c : Cost.values()){
+         if (sb.length() > 0) sb.append(", ");
+         sb.append(c.name().toLowerCase()).append(' ')
+           .append(this._admitted[c.ordinal()].get()).append(" admitted/")
+           .append(this._shed[c.ordinal()].get()).append(" shed");
+      }//end for
+      return sb.toString();
+   }//end stats
+
+}//end AdmissionControl
@@ -0,0 +1,146 @@
+/*
+ * Async query pool
+ * =============================
+ *
+ * A few extra sessions to one database and a thread per session, so that
+ * independent queries of one operation can run at the same time instead of
+ * one after another on the operation's own connection. One pool is shared
+ * by every session of the process connected to the same database as the
+ * same user.
+ *
+ *    -Dprofnetwork.asyncPool   sessions per database (default 4)
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pooled sessions and the executor that runs queries on them.
+ */
+public class AsyncPool {
+
+   private static final int SIZE = Integer.getInteger("profnetwork.asyncPool", 4);
+
+   private static final Map<String, AsyncPool> pools = new ConcurrentHashMap<String, AsyncPool>();
+
+   /**
+    * Work to run on a pooled session.
+    */
+   interface SessionTask<T> {
+      T run(ProfNetwork session) throws SQLException;
+   }
+
+   private final ProfNetwork _origin;
+   private final BlockingQueue<ProfNetwork> _idle = new LinkedBlockingQueue<ProfNetwork>();
+   private final AtomicInteger _opened = new AtomicInteger();
+   private final ExecutorService _executor;
+
+   private AsyncPool(ProfNetwork origin){
+      this._origin = origin;
+      final AtomicInteger threads = new AtomicInteger();
+      this._executor = Executors.newFixedThreadPool(SIZE, r -> {
+         Thread t = new Thread(r, "async-query-" + threads.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * @param key identifies the database and user
+    * @param origin a session to that database, used to open pooled ones
+    * @return the pool for the database, created on first use
+    */
+   static AsyncPool of(String key, ProfNetwork origin){
+      return pools.computeIfAbsent(key, k -> new AsyncPool(origin));
+   }//end of
+
+   /**
+    * Runs a task on a pooled session on a pool thread, under the operation
+    * and budget of the calling thread.
+    *
+    * @return a future completed with the task's result, or exceptionally
+    *         with its SQLException
+    */
+   <T> CompletableFuture<T> submit(final SessionTask<T> task){
+      final String operation = ProfilingEvents.currentOperation();
+      final AdmissionControl.Budget budget = AdmissionControl.currentBudget();
+      return CompletableFuture.supplyAsync(() -> {
+         ProfilingEvents.setCurrentOperation(operation);
+         AdmissionControl.setCurrentBudget(budget);
+         ProfNetwork session = null;
+         try{
+            session = borrow();
+            return task.run(session);
+         }catch (SQLException e){
+            throw new CompletionException(e);
+         }finally{
+            if (session != null) this._idle.add(session);
+            ProfilingEvents.setCurrentOperation(null);
+            AdmissionControl.setCurrentBudget(null);
+         }//end try
+      }, this._executor);
+   }//end submit
+
+   // an idle session, opening one while under the pool size; there is one
+   // thread per session, so a thread never waits for one
+   private ProfNetwork borrow() throws SQLException {
+      ProfNetwork session = this._idle.poll();
+      if (session != null) return session;
+      if (this._opened.incrementAndGet() <= SIZE){
+         try{
+            return this._origin.openSession();
+         }catch (SQLException e){
+            this._opened.decrementAndGet();
+            throw e;
+         }//end try
+      }//end if
+      this._opened.decrementAndGet();
+      try{
+         return this._idle.take();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted while waiting for a pooled session", e);
+      }//end try
+   }//end borrow
+
+   /**
+    * Waits for a future from submit().
+    *
+    * @return its result
+    * @throws java.sql.SQLException the task's exception
+    */
+   static <T> T await(CompletableFuture<T> future) throws SQLException {
+      try{
+         return future.join();
+      }catch (CompletionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause());
+      }//end try
+   }//end await
+
+   /**
+    * Stops every pool and closes its sessions.
+    */
+   static void shutdownAll(){
+      for (AsyncPool pool : pools.values()){
+         pool._executor.shutdownNow();
+         for (ProfNetwork session : pool._idle)
+            session.cleanup();
+      }//end for
+      pools.clear();
+   }//end shutdownAll
+
+}//end AsyncPool
@@ -0,0 +1,141 @@
+/*
+ * Unread message and pending request counters
+ * =============================
+ *
+ * Per user counts shown next to the main menu. They are kept up to date by
+ * the write paths in this process and reconciled with the database now and
+ * then, so a menu redraw reads two numbers instead of scanning MESSAGE and
+ * CONNECTION_USR.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory unread/pending counters for the users active in this process.
+ * Users not yet reconciled are not tracked and increments for them are
+ * dropped; their first read reconciles from the database.
+ */
+public class BadgeCounters {
+
+   // how long counts are trusted before being recounted from the database
+   private static final long RECONCILE_MILLIS = 60 * 1000;
+
+   // users are keyed by their id in the shared dictionary
+   private final UserIds _dict;
+
+   private final Map<Integer, LongAdder> _unread = new ConcurrentHashMap<Integer, LongAdder>();
+   private final Map<Integer, LongAdder> _pending = new ConcurrentHashMap<Integer, LongAdder>();
+
+   // user id -> time of the last reconcile, 0 when marked stale
+   private final Map<Integer, Long> _reconciled = new ConcurrentHashMap<Integer, Long>();
+
+   public BadgeCounters(UserIds dict){
+      this._dict = dict;
+   }
+
+   /**
+    * @return the number of delivered but unread messages for a user
+    */
+   public long unread(String userId){
+      LongAdder count = this._unread.get(this._dict.id(userId));
+      return count == null ? 0 : Math.max(0, count.sum());
+   }//end unread
+
+   /**
+    * @return the number of connection requests waiting for a user's answer
+    */
+   public long pending(String userId){
+      LongAdder count = this._pending.get(this._dict.id(userId));
+      return count == null ? 0 : Math.max(0, count.sum());
+   }//end pending
+
+   /**
+    * A message was sent to the user.
+    */
+   public void messageDelivered(String receiverId){
+      add(this._unread, receiverId, 1);
+   }//end messageDelivered
+
+   /**
+    * Some of the user's unread messages were marked Read, or deleted by
+    * the user unread.
+    */
+   public void messagesRead(String receiverId, int count){
+      add(this._unread, receiverId, -count);
+   }//end messagesRead
+
+   /**
+    * Someone asked to connect with the user.
+    */
+   public void requestReceived(String userId){
+      add(this._pending, userId, 1);
+   }//end requestReceived
+
+   /**
+    * The user accepted or rejected some of their pending requests.
+    */
+   public void requestsAnswered(String userId, int count){
+      add(this._pending, userId, -count);
+   }//end requestsAnswered
+
+   /**
+    * Forces a recount on the next reconcileIfStale, used when another
+    * instance changed the user's messages or requests.
+    */
+   public void invalidate(String userId){
+      int u = this._dict.id(userId);
+      if (this._reconciled.containsKey(u))
+         this._reconciled.put(u, 0L);
+   }//end invalidate
+
+   /**
+    * Recounts the user's counters if they were never counted, were marked
+    * stale, or are older than the reconcile interval.
+    *
+    * @throws java.sql.SQLException when the counts could not be read
+    */
+   public void reconcileIfStale(ProfNetwork esql, String userId) throws SQLException {
+      Long last = this._reconciled.get(this._dict.id(userId));
+      if (last == null || System.currentTimeMillis() - last > RECONCILE_MILLIS)
+         reconcile(esql, userId);
+   }//end reconcileIfStale
+
+   /**
+    * Recounts the user's unread messages and pending requests.
+    *
+    * @throws java.sql.SQLException when the counts could not be read
+    */
+   public void reconcile(ProfNetwork esql, String userId) throws SQLException {
+      long now = System.currentTimeMillis();
+      List<List<String>> unread = esql.executeQueryAndReturnResult(String.format(
+         "SELECT count(*) FROM MESSAGE WHERE receiverId='%s' AND status='Delivered' AND deleteStatus NOT IN ('1', '3')", userId));
+      List<List<String>> pending = esql.executeQueryAndReturnResult(String.format(
+         "SELECT count(*) FROM CONNECTION_USR WHERE userId='%s' AND status='Request'", userId));
+      int u = this._dict.intern(userId);
+      set(this._unread, u, Long.parseLong(unread.get(0).get(0)));
+      set(this._pending, u, Long.parseLong(pending.get(0).get(0)));
+      this._reconciled.put(u, now);
+   }//end reconcile
+
+   // only users that have been reconciled are tracked
+   private void add(Map<Integer, LongAdder> counters, String userId, long delta){
+      LongAdder count = counters.get(this._dict.id(userId));
+      if (count != null)
+         count.add(delta);
+   }//end add
+
+   private static void set(Map<Integer, LongAdder> counters, int user, long value){
+      LongAdder count = new LongAdder();
+      count.add(value);
+      counters.put(user, count);
+   }//end set
+
+}//end BadgeCounters
@@ -0,0 +1,141 @@
+/*
+ * Cache coherence listener
+ * =============================
+ *
+ * LISTENs for the change notifications published by the triggers in
+ * sql/cache_notify.sql and applies them to this instance's caches, so
+ * writes made by other ProfNetwork processes become visible here.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Background thread holding its own session with LISTEN active. Bursts of
+ * notifications are collected for a short window and coalesced per row,
+ * keeping each row's last change, before being applied; very large bursts, and any reconnect (notifications sent
+ * while disconnected are lost), fall back to a full resync.
+ */
+public class CacheListener extends Thread {
+
+   private static final String CHANNEL = "profnetwork";
+
+   // how long one poll blocks, and the window used to coalesce a burst
+   private static final int POLL_MILLIS = 500;
+   private static final int COALESCE_MILLIS = 50;
+
+   // distinct changes in one burst above which a full resync is cheaper
+   private static final int RESYNC_THRESHOLD = 1000;
+
+   // delay before reconnecting after the session failed
+   private static final int RETRY_MILLIS = 5000;
+
+   private final ProfNetwork _esql;
+   private volatile boolean _running = true;
+
+   /**
+    * @param esql the main session, used to open the listening session
+    */
+   public CacheListener(ProfNetwork esql){
+      super("cache-listener");
+      this._esql = esql;
+      setDaemon(true);
+   }
+
+   /**
+    * Stops listening; returns without waiting for the thread to finish.
+    */
+   public void shutdown(){
+      this._running = false;
+      interrupt();
+   }//end shutdown
+
+   public void run(){
+      boolean reconnect = false;
+      boolean reported = false;
+      while (this._running){
+         ProfNetwork session = null;
+         try{
+            session = this._esql.openSession();
+            session.executeUpdate("LISTEN " + CHANNEL);
+            if (reconnect)
+               ProfNetwork.resyncCaches();
+            reported = false;
+            listen(session);
+         }catch (Exception e){
+            if (this._running && !reported){
+               System.err.println("Cache listener: " + e.getMessage());
+               reported = true;
+            }//end if
+         }finally{
+            if (session != null)
+               session.cleanup();
+         }//end try
+         reconnect = true;
+
+         try{
+            if (this._running)
+               Thread.sleep(RETRY_MILLIS);
+         }catch (InterruptedException e){
+            // shutdown() was called
+         }//end try
+      }//end while
+   }//end run
+
+   private void listen(ProfNetwork session) throws Exception {
+      // the postgres driver is only on the runtime classpath
+      Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+      Class<?> pgNotification = Class.forName("org.postgresql.PGNotification");
+      Object pg = session.getConnection().unwrap(pgConnection);
+      Method getNotifications = pgConnection.getMethod("getNotifications", int.class);
+      Method getParameter = pgNotification.getMethod("getParameter");
+
+      while (this._running){
+         // row key -> latest payload, in the order of each row's latest change
+         Map<String, String> changes = new LinkedHashMap<String, String>();
+         int timeout = POLL_MILLIS;
+         while (changes.size() <= RESYNC_THRESHOLD){
+            Object[] batch = (Object[]) getNotifications.invoke(pg, timeout);
+            if (batch == null || batch.length == 0) break;
+            for (Object notification : batch){
+               String change = (String) getParameter.invoke(notification);
+               String key = rowKey(change);
+               changes.remove(key);
+               changes.put(key, change);
+            }//end for
+            timeout = COALESCE_MILLIS;
+         }//end while
+
+         if (changes.size() > RESYNC_THRESHOLD){
+            ProfNetwork.resyncCaches();
+            continue;
+         }//end if
+         for (String change : changes.values()){
+            try{
+               ProfNetwork.cacheInvalidated(session, change.split("\\|", -1));
+            }catch (RuntimeException e){
+               // malformed payload, nothing sensible to apply
+               System.err.println("Cache listener: ignoring '" + change + "'");
+            }//end try
+         }//end for
+      }//end while
+   }//end listen
+
+   /**
+    * What a payload (table|op|keys...) is coalesced by. A CONNECTION_USR
+    * change sets the row's status, so only the row's last change matters:
+    * its key is the table and the row's two userIds. Changes to the other
+    * tables only invalidate, in any order, so equal payloads coalesce.
+    */
+   static String rowKey(String change){
+      String[] parts = change.split("\\|", -1);
+      if (parts.length < 4 || !parts[0].equals("connection_usr")) return change;
+      return parts[0] + "|" + parts[2] + "|" + parts[3];
+   }//end rowKey
+
+}//end CacheListener
@@ -0,0 +1,226 @@
+/*
+ * Scripted command mode
+ * =============================
+ *
+ * Runs operations given on the command line or in a script file, without
+ * the interactive menus:
+ *
+ *    java ProfNetwork <dbname> <port> <user> send-message alice bob "hi there"
+ *    java ProfNetwork <dbname> <port> <user> --script jobs.txt
+ *
+ * A script holds one command per line; blank lines and lines starting with
+ * '#' are skipped. All commands of a run share one connection and one
+ * transaction: they are committed together, or rolled back together on the
+ * first failure.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line front end over the non-interactive operations in ProfNetwork.
+ */
+public class CommandMode {
+
+   private static final String HELP =
+      "Commands:\n" +
+      "   create-user <login> <password> <email>\n" +
+      "   change-password <user> <password>\n" +
+      "   update-profile <user> <field> <value>\n" +
+      "      fields: company role location work-start work-end\n" +
+      "              institution major degree edu-start edu-end\n" +
+      "   send-message <sender> <receiver> <contents>\n" +
+      "   broadcast-message <sender> <contents>\n" +
+      "   send-request <sender> <receiver>\n" +
+      "   accept-request <user> <connectionId>[,<connectionId>...] | '*'\n" +
+      "   reject-request <user> <connectionId>[,<connectionId>...] | '*'\n" +
+      "   archive-messages <days>\n" +
+      "   help\n" +
+      "Use --script <file> (or --script - for stdin) to run one command per line.";
+
+   /**
+    * Runs a single command, or every command of a script, in one transaction.
+    *
+    * @param esql the database session
+    * @param args the command and its arguments, or --script and a file name
+    * @return the process exit status, 0 when everything was committed
+    */
+   public static int run(ProfNetwork esql, String[] args){
+      List<String[]> commands;
+      try{
+         if (args[0].equals("--script")){
+            if (args.length != 2){
+               System.err.println("Usage: --script <file>");
+               return 2;
+            }//end if
+            commands = readScript(args[1]);
+         }else{
+            commands = new ArrayList<String[]>();
+            commands.add(args);
+         }//end if
+      }catch (IOException e){
+         System.err.println("Unable to read script: " + e.getMessage());
+         return 2;
+      }//end try
+
+      // a script is one trusted batch job: do not rate limit it against itself
+      ProfNetwork.admission.setEnabled(false);
+      int done = 0;
+      try{
+         esql.setAutoCommit(false);
+         for (String[] command : commands){
+            ProfilingEvents.OperationEvent op = ProfilingEvents.beginOperation(command[0], null);
+            try{
+               execute(esql, command);
+            }finally{
+               ProfilingEvents.endOperation(op);
+            }//end try
+            done++;
+         }//end for
+         esql.commit();
+         System.out.println(done + " command(s) committed");
+         return 0;
+      }catch (Exception e){
+         esql.rollback();
+         // in-memory caches may have seen updates that were just undone
+         ProfNetwork.resyncCaches();
+         // every command ran when the commit itself failed
+         String step = done < commands.size()
+            ? "Command " + (done + 1) + " (" + String.join(" ", commands.get(done)) + ")"
+            : "Commit";
+         System.err.println(step + " failed: " + e.getMessage());
+         System.err.println("Rolled back, nothing was changed");
+         return 1;
+      }finally{
+         try{
+            esql.setAutoCommit(true);
+         }catch (Exception e){
+            // ignored, the session is closed next anyway.
+         }//end try
+      }//end try
+   }//end run
+
+   // reads a script, one tokenized command per non-blank, non-comment line
+   private static List<String[]> readScript(String file) throws IOException {
+      BufferedReader reader = file.equals("-")
+         ? new BufferedReader(new InputStreamReader(System.in))
+         : new BufferedReader(new FileReader(file));
+      List<String[]> commands = new ArrayList<String[]>();
+      try{
+         String line;
+         while ((line = reader.readLine()) != null){
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            commands.add(tokenize(line));
+         }//end while
+      }finally{
+         reader.close();
+      }//end try
+      return commands;
+   }//end readScript
+
+   /**
+    * Splits a line on whitespace, keeping "double quoted" text together.
+    */
+   static String[] tokenize(String line){
+      List<String> tokens = new ArrayList<String>();
+      StringBuilder token = new StringBuilder();
+      boolean quoted = false, inToken = false;
+      for (int i = 0; i < line.length(); i++){
+         char c = line.charAt(i);
+         if (c == '"'){
+            quoted = !quoted;
+            inToken = true;
+         }else if (Character.isWhitespace(c) && !quoted){
+            if (inToken) tokens.add(token.toString());
+            token.setLength(0);
+            inToken = false;
+         }else{
+            token.append(c);
+            inToken = true;
+         }//end if
+      }//end for
+      if (inToken) tokens.add(token.toString());
+      return tokens.toArray(new String[0]);
+   }//end tokenize
+
+   private static void execute(ProfNetwork esql, String[] command) throws Exception {
+      String name = command[0];
+      String[] a = Arrays.copyOfRange(command, 1, command.length);
+      switch (name){
+         case "create-user":
+            expect(name, a, 3);
+            ProfNetwork.createUser(esql, a[0], a[1], a[2]);
+            break;
+         case "change-password":
+            expect(name, a, 2);
+            ProfNetwork.changePassword(esql, a[0], a[1]);
+            break;
+         case "update-profile":
+            expect(name, a, 3);
+            ProfNetwork.updateProfileField(esql, a[0], a[1], a[2]);
+            break;
+         case "send-message":
+            expect(name, a, 3);
+            ProfNetwork.sendMessage(esql, a[0], a[1], a[2]);
+            break;
+         case "broadcast-message":
+            expect(name, a, 2);
+            List<String> receivers = ProfNetwork.broadcastMessage(esql, a[0], a[1]);
+            System.out.println(name + ": sent to " + receivers.size() + " connection(s) of " + a[0]);
+            break;
+         case "send-request":
+            expect(name, a, 2);
+            if (!ProfNetwork.requestConnection(esql, a[0], a[1]))
+               System.out.println(name + ": " + a[0] + " and " + a[1] + " already have a request or connection");
+            break;
+         case "accept-request":
+            expect(name, a, 2);
+            answer(esql, name, a[0], a[1], "Accept");
+            break;
+         case "reject-request":
+            expect(name, a, 2);
+            answer(esql, name, a[0], a[1], "Reject");
+            break;
+         case "archive-messages":
+            expect(name, a, 1);
+            int archived = ProfNetwork.archiveMessages(esql, Integer.parseInt(a[0]));
+            System.out.println(name + ": " + archived + " message(s) older than " + a[0] + " days archived");
+            break;
+         case "help":
+            System.out.println(HELP);
+            break;
+         default:
+            throw new IllegalArgumentException("unknown command '" + name + "', try help");
+      }//end switch
+   }//end execute
+
+   // answers a comma separated list of requests, or all of them for '*', in one UPDATE
+   private static void answer(ProfNetwork esql, String name, String user, String ids, String status) throws Exception {
+      if (ids.equals("*")){
+         List<String> answered = ProfNetwork.answerAllRequests(esql, user, "%", status);
+         System.out.println(name + ": " + answered.size() + " request(s) answered for " + user);
+         return;
+      }//end if
+      Map<String, Boolean> outcome = ProfNetwork.answerRequests(esql, user, ids.split(","), status);
+      for (Map.Entry<String, Boolean> e : outcome.entrySet())
+         if (!e.getValue())
+            System.out.println(name + ": no pending request from " + e.getKey() + " to " + user);
+   }//end answer
+
+   private static void expect(String name, String[] args, int count){
+      if (args.length != count)
+         throw new IllegalArgumentException(name + " takes " + count + " argument(s), got " + args.length);
+   }//end expect
+
+}//end CommandMode
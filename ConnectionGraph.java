@@ -0,0 +1,574 @@
+/*
+ * In-memory connection graph
+ * =============================
+ *
+ * Snapshot of the accepted connections in CONNECTION_USR, kept as sorted
+ * int adjacency arrays over a dense user dictionary so that graph walks
+ * (friends of friends, recommendations) never go back to the database.
+ *
+ * The graph can be saved to a binary snapshot file and read back at
+ * startup instead of scanning CONNECTION_USR; changes made since the
+ * snapshot are replayed from CONNECTION_LOG (see sql/connection_log.sql).
+ * Reading a snapshot is one pass over the mapped file that interns every
+ * name and copies every neighbor list onto the heap, so it saves the scan
+ * and its round trips but still takes time in proportion to the graph.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Undirected graph of accepted connections. Users are identified by their
+ * ids in the shared UserIds dictionary; neighbor arrays are sorted and
+ * replaced (never modified in place) so readers need no locking.
+ */
+public class ConnectionGraph {
+
+   private final UserIds _dict;
+
+   // sorted neighbor ids per dense id
+   private volatile int[][] _adj = new int[0][];
+
+   // oldest transaction id that may still add CONNECTION_LOG entries the
+   // graph does not reflect: the xmin of a snapshot taken before the graph
+   // last read the database. -1 if there is no log
+   private long _changeMark = -1;
+
+   // snapshot file layout: header, name offsets, name bytes, adjacency
+   // offsets, neighbor ids, and a trailing CRC32 of everything before it
+   private static final int SNAPSHOT_MAGIC = 0x504E4753; // "PNGS"
+   private static final int SNAPSHOT_VERSION = 2;   // 1 stored a log sequence number
+
+   ConnectionGraph(UserIds dict){
+      this._dict = dict;
+   }
+
+   /**
+    * Builds the graph from every accepted row of CONNECTION_USR with one scan.
+    *
+    * @param esql the database session
+    * @return the loaded graph
+    * @throws java.sql.SQLException when the scan failed
+    */
+   public static ConnectionGraph load(ProfNetwork esql) throws SQLException {
+      // read the mark first, so changes racing with the scan get replayed
+      long mark = currentChangeMark(esql);
+      int[] pairs = esql.executeQueryAndReturnUserIds(
+         "SELECT userId, connectionId FROM CONNECTION_USR WHERE status='Accept'");
+
+      ConnectionGraph graph = new ConnectionGraph(ProfNetwork.userIds);
+      int edges = pairs.length / 2;
+      int[] from = new int[edges];
+      int[] to = new int[edges];
+      for (int i = 0; i < edges; i++){
+         from[i] = pairs[2 * i];
+         to[i] = pairs[2 * i + 1];
+      }//end for
+      graph.build(from, to, edges);
+      graph._changeMark = mark;
+      return graph;
+   }//end load
+
+   /**
+    * Loads the graph from a snapshot file if a valid one exists and the
+    * change log can bring it up to date; otherwise scans CONNECTION_USR and
+    * writes a fresh snapshot for the next start.
+    *
+    * @param esql the database session
+    * @param snapshot the snapshot file
+    * @return the up to date graph
+    * @throws java.sql.SQLException when the graph could not be read
+    */
+   public static ConnectionGraph open(ProfNetwork esql, File snapshot) throws SQLException {
+      ConnectionGraph graph = null;
+      try{
+         if (snapshot.exists())
+            graph = map(snapshot);
+      }catch (IOException e){
+         System.err.println("Ignoring graph snapshot: " + e.getMessage());
+      }//end try
+
+      if (graph != null && graph._changeMark >= 0 && graph.applyChanges(esql))
+         return graph;
+
+      graph = load(esql);
+      try{
+         graph.save(snapshot);
+      }catch (IOException e){
+         System.err.println("Unable to write graph snapshot: " + e.getMessage());
+      }//end try
+      return graph;
+   }//end open
+
+   /**
+    * Replays the CONNECTION_LOG entries written by transactions at or after
+    * the graph's change mark. Every transaction below the mark had ended
+    * before the graph last read the database, so its changes are already
+    * in the graph; later ones are replayed whenever they committed.
+    * Replaying an entry twice is harmless: entries for one row are numbered
+    * in commit order, so applying them in sequence order always ends with
+    * the row's latest status.
+    *
+    * @return false if the log is not available and the graph must be reloaded
+    */
+   public boolean applyChanges(ProfNetwork esql){
+      // read the new mark first: whatever ends after it is replayed next time
+      long mark = currentChangeMark(esql);
+      List<List<String>> rows;
+      try{
+         if (mark < 0) return false;
+         rows = esql.executeQueryAndReturnResult(String.format(
+            "SELECT userId, connectionId, status FROM CONNECTION_LOG WHERE txid >= %d ORDER BY seq",
+            this._changeMark));
+      }catch (SQLException e){
+         return false;
+      }//end try
+
+      for (List<String> row : rows){
+         String status = row.get(2).trim();
+         if (status.equals("Accept"))
+            addEdge(row.get(0), row.get(1));
+         else if (!status.equals("Request"))
+            removeEdge(row.get(0), row.get(1));
+      }//end for
+      this._changeMark = mark;
+      return true;
+   }//end applyChanges
+
+   // xmin of a fresh snapshot: every transaction below it has ended, and is
+   // visible to any statement run from now on. -1 when the log table (with
+   // its txid column) is not installed; the subquery only checks for that
+   private static long currentChangeMark(ProfNetwork esql){
+      try{
+         List<List<String>> rows = esql.executeQueryAndReturnResult(
+            "SELECT txid_snapshot_xmin(txid_current_snapshot()) WHERE NOT EXISTS (SELECT txid FROM CONNECTION_LOG WHERE false)");
+         return Long.parseLong(rows.get(0).get(0));
+      }catch (SQLException e){
+         return -1;
+      }//end try
+   }//end currentChangeMark
+
+   /**
+    * Writes the graph to a snapshot file. Names are written for ids
+    * 0..size()-1 so the file stands on its own; map() interns them again. The file is written next to the
+    * target and renamed into place, so a crash never leaves a torn snapshot.
+    *
+    * @param file the snapshot file
+    * @throws java.io.IOException when the file could not be written
+    */
+   public synchronized void save(File file) throws IOException {
+      int[][] adj = this._adj;
+      int n = adj.length;
+      byte[][] names = new byte[n][];
+      int nameBytes = 0, edges = 0;
+      for (int u = 0; u < n; u++){
+         names[u] = this._dict.name(u).getBytes(StandardCharsets.UTF_8);
+         nameBytes += names[u].length;
+         edges += adj[u].length;
+      }//end for
+
+      File tmp = new File(file.getPath() + ".tmp");
+      CRC32 crc = new CRC32();
+      DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+         new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16), crc));
+      try{
+         out.writeInt(SNAPSHOT_MAGIC);
+         out.writeInt(SNAPSHOT_VERSION);
+         out.writeLong(this._changeMark);
+         out.writeInt(n);
+         out.writeInt(nameBytes);
+         out.writeInt(edges);
+
+         int offset = 0;
+         for (int u = 0; u < n; u++){
+            out.writeInt(offset);
+            offset += names[u].length;
+         }//end for
+         out.writeInt(offset);
+         for (int u = 0; u < n; u++)
+            out.write(names[u]);
+
+         offset = 0;
+         for (int u = 0; u < n; u++){
+            out.writeInt(offset);
+            offset += adj[u].length;
+         }//end for
+         out.writeInt(offset);
+         for (int u = 0; u < n; u++)
+            for (int v : adj[u])
+               out.writeInt(v);
+
+         out.flush();
+         // the checksum itself is not part of the checked bytes
+         long sum = crc.getValue();
+         out.writeLong(sum);
+      }finally{
+         out.close();
+      }//end try
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end save
+
+   /**
+    * Maps a snapshot file into memory and rebuilds the graph from it. The
+    * snapshot's names are interned into the shared dictionary and its ids
+    * translated when they differ; each neighbor list is copied once, from
+    * the mapped file into its heap array.
+    *
+    * @param file the snapshot file
+    * @return the graph as of the snapshot's change mark
+    * @throws java.io.IOException when the file is unreadable, of another
+    *         version, or fails its checksum
+    */
+   public static ConnectionGraph map(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try{
+         FileChannel channel = raf.getChannel();
+         long size = channel.size();
+         if (size < 36)
+            throw new IOException("snapshot truncated");
+         MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+         CRC32 crc = new CRC32();
+         ByteBuffer body = buf.duplicate();
+         body.limit((int) size - 8);
+         crc.update(body);
+         if (crc.getValue() != buf.getLong((int) size - 8))
+            throw new IOException("snapshot checksum mismatch");
+
+         if (buf.getInt() != SNAPSHOT_MAGIC || buf.getInt() != SNAPSHOT_VERSION)
+            throw new IOException("not a graph snapshot of this version");
+         UserIds dict = ProfNetwork.userIds;
+         ConnectionGraph graph = new ConnectionGraph(dict);
+         graph._changeMark = buf.getLong();
+         int n = buf.getInt();
+         int nameBytes = buf.getInt();
+         int edges = buf.getInt();
+
+         int[] nameOffsets = new int[n + 1];
+         buf.asIntBuffer().get(nameOffsets);
+         buf.position(buf.position() + 4 * (n + 1));
+         byte[] names = new byte[nameBytes];
+         buf.get(names);
+         // snapshot id -> dictionary id; the same ids when the graph is the
+         // first to fill the dictionary, as at startup
+         int[] ids = new int[n];
+         boolean same = true;
+         int users = n;
+         for (int u = 0; u < n; u++){
+            ids[u] = dict.intern(names, nameOffsets[u], nameOffsets[u + 1] - nameOffsets[u]);
+            same &= ids[u] == u;
+            users = Math.max(users, ids[u] + 1);
+         }//end for
+
+         int[] adjOffsets = new int[n + 1];
+         buf.asIntBuffer().get(adjOffsets);
+         buf.position(buf.position() + 4 * (n + 1));
+         IntBuffer neighbors = buf.asIntBuffer();
+         if (adjOffsets[n] != edges || neighbors.remaining() < edges + 2)
+            throw new IOException("snapshot adjacency truncated");
+
+         int[][] adj = new int[users][];
+         Arrays.fill(adj, new int[0]);
+         for (int u = 0; u < n; u++){
+            int[] list = new int[adjOffsets[u + 1] - adjOffsets[u]];
+            neighbors.position(adjOffsets[u]);
+            neighbors.get(list);
+            if (!same){
+               for (int i = 0; i < list.length; i++)
+                  list[i] = ids[list[i]];
+               Arrays.sort(list);
+            }//end if
+            adj[ids[u]] = list;
+         }//end for
+         graph._adj = adj;
+         return graph;
+      }catch (RuntimeException e){
+         // buffer underflows and bad offsets mean a corrupt file
+         throw new IOException("snapshot unreadable: " + e, e);
+      }finally{
+         raf.close();
+      }//end try
+   }//end map
+
+   /**
+    * Replaces the adjacency arrays with the given undirected edge list.
+    * Self loops and duplicate edges are dropped.
+    */
+   void build(int[] from, int[] to, int edges){
+      int n = this._dict.size();
+      int[] degree = new int[n];
+      for (int i = 0; i < edges; i++){
+         if (from[i] == to[i]) continue;
+         degree[from[i]]++;
+         degree[to[i]]++;
+      }//end for
+
+      int[][] adj = new int[n][];
+      for (int u = 0; u < n; u++)
+         adj[u] = new int[degree[u]];
+      int[] fill = new int[n];
+      for (int i = 0; i < edges; i++){
+         if (from[i] == to[i]) continue;
+         adj[from[i]][fill[from[i]]++] = to[i];
+         adj[to[i]][fill[to[i]]++] = from[i];
+      }//end for
+
+      for (int u = 0; u < n; u++)
+         adj[u] = sortedUnique(adj[u]);
+      this._adj = adj;
+   }//end build
+
+   /**
+    * @return the dense id of the user, or -1 if the user was never seen;
+    *         a user without connections may still have an id
+    */
+   public int id(String userId){
+      return this._dict.id(userId);
+   }//end id
+
+   /**
+    * @return the userId behind a dense id
+    */
+   public String name(int id){
+      return this._dict.name(id);
+   }//end name
+
+   /**
+    * @return the number of ids the adjacency arrays cover
+    */
+   public int size(){
+      return this._adj.length;
+   }//end size
+
+   /**
+    * @return the sorted neighbor ids of a user; must not be modified
+    */
+   public int[] neighbors(int id){
+      int[][] adj = this._adj;
+      return id < adj.length ? adj[id] : new int[0];
+   }//end neighbors
+
+   /**
+    * @return true if the two users are directly connected
+    */
+   public boolean connected(int a, int b){
+      return Arrays.binarySearch(neighbors(a), b) >= 0;
+   }//end connected
+
+   /**
+    * Finds one shortest chain of connections between two users using a
+    * bidirectional breadth first search, always expanding the smaller
+    * frontier. Visited marks and parents live in per-thread scratch arrays
+    * over the dense ids, reset through the list of ids the search touched,
+    * so a search costs only what it visits.
+    *
+    * @param source dense id of the first user
+    * @param target dense id of the second user
+    * @param maxHops longest chain worth reporting
+    * @param budgetNanos time allowed for the search
+    * @return the dense ids along the path, source first, or null when the
+    *         users are further apart than maxHops or the budget ran out
+    */
+   public int[] shortestPath(int source, int target, int maxHops, long budgetNanos){
+      if (source < 0 || target < 0) return null;
+      if (source == target) return new int[] { source };
+
+      long deadline = System.nanoTime() + budgetNanos;
+      int n = size();
+      Scratch scratch = Scratch.get(n);
+      try{
+         byte[] seen = scratch.seen;
+         int[] parentA = scratch.parentA, parentB = scratch.parentB;
+         scratch.mark(source, SIDE_A);
+         scratch.mark(target, SIDE_B);
+
+         int[] frontA = { source }, frontB = { target };
+         int lenA = 1, lenB = 1;
+         int visits = 0;
+         for (int hops = 1; hops <= maxHops && lenA > 0 && lenB > 0; hops++){
+            boolean forward = lenA <= lenB;
+            int[] front = forward ? frontA : frontB;
+            int len = forward ? lenA : lenB;
+            byte side = forward ? SIDE_A : SIDE_B;
+            int[] parent = forward ? parentA : parentB;
+
+            int[] next = new int[Math.max(16, len)];
+            int nextLen = 0;
+            for (int i = 0; i < len; i++){
+               int u = front[i];
+               for (int v : neighbors(u)){
+                  if (v >= n || (seen[v] & side) != 0) continue;
+                  parent[v] = u;
+                  if (seen[v] != 0)
+                     return joinPath(v, source, target, parentA, parentB);
+                  scratch.mark(v, side);
+                  if (nextLen == next.length)
+                     next = Arrays.copyOf(next, nextLen * 2);
+                  next[nextLen++] = v;
+               }//end for
+               if ((++visits & 1023) == 0 && System.nanoTime() > deadline)
+                  return null;
+            }//end for
+
+            if (forward){
+               frontA = next;
+               lenA = nextLen;
+            }else{
+               frontB = next;
+               lenB = nextLen;
+            }//end if
+         }//end for
+         return null;
+      }finally{
+         scratch.reset();
+      }//end try
+   }//end shortestPath
+
+   // visited marks in Scratch.seen, one bit per search direction
+   private static final byte SIDE_A = 1;
+   private static final byte SIDE_B = 2;
+
+   /**
+    * Per-thread search state, grown to the graph size and kept between
+    * searches. Only the marks of touched ids are cleared afterwards; parent
+    * entries are always written before they are read.
+    */
+   private static class Scratch {
+      private static final ThreadLocal<Scratch> current = new ThreadLocal<Scratch>();
+
+      byte[] seen = new byte[0];
+      int[] parentA = new int[0], parentB = new int[0];
+      private int[] _touched = new int[64];
+      private int _touchedLen;
+
+      // the calling thread's scratch, large enough for n ids
+      static Scratch get(int n){
+         Scratch scratch = current.get();
+         if (scratch == null)
+            current.set(scratch = new Scratch());
+         if (scratch.seen.length < n){
+            scratch.seen = new byte[n];
+            scratch.parentA = new int[n];
+            scratch.parentB = new int[n];
+         }//end if
+         return scratch;
+      }//end get
+
+      void mark(int v, byte side){
+         if (this.seen[v] == 0){
+            if (this._touchedLen == this._touched.length)
+               this._touched = Arrays.copyOf(this._touched, this._touchedLen * 2);
+            this._touched[this._touchedLen++] = v;
+         }//end if
+         this.seen[v] |= side;
+      }//end mark
+
+      void reset(){
+         for (int i = 0; i < this._touchedLen; i++)
+            this.seen[this._touched[i]] = 0;
+         this._touchedLen = 0;
+      }//end reset
+   }//end Scratch
+
+   // builds source .. meet .. target from the two parent arrays
+   private static int[] joinPath(int meet, int source, int target, int[] parentA, int[] parentB){
+      int left = 0;
+      for (int v = meet; v != source; v = parentA[v]) left++;
+      int right = 0;
+      for (int v = meet; v != target; v = parentB[v]) right++;
+
+      int[] path = new int[left + right + 1];
+      int i = left;
+      for (int v = meet; v != source; v = parentA[v]) path[i--] = v;
+      path[0] = source;
+      i = left + 1;
+      for (int v = parentB[meet]; i < path.length; v = parentB[v]) path[i++] = v;
+      path[left] = meet;
+      return path;
+   }//end joinPath
+
+   /**
+    * Records a newly accepted connection without reloading the graph.
+    */
+   public synchronized void addEdge(String a, String b){
+      int u = this._dict.intern(a);
+      int v = this._dict.intern(b);
+      if (u == v) return;
+
+      int[][] adj = this._adj;
+      int n = this._dict.size();
+      if (adj.length < n){
+         int[][] grown = Arrays.copyOf(adj, n);
+         for (int i = adj.length; i < grown.length; i++)
+            grown[i] = new int[0];
+         adj = grown;
+      }//end if
+      adj[u] = insert(adj[u], v);
+      adj[v] = insert(adj[v], u);
+      this._adj = adj;
+   }//end addEdge
+
+   /**
+    * Drops a connection that is no longer accepted.
+    */
+   public synchronized void removeEdge(String a, String b){
+      int u = id(a), v = id(b);
+      int[][] adj = this._adj;
+      if (u < 0 || v < 0 || u >= adj.length || v >= adj.length) return;
+      adj[u] = remove(adj[u], v);
+      adj[v] = remove(adj[v], u);
+   }//end removeEdge
+
+   // returns a copy of a sorted array without value, or the array itself if absent
+   private static int[] remove(int[] sorted, int value){
+      int pos = Arrays.binarySearch(sorted, value);
+      if (pos < 0) return sorted;
+      int[] result = new int[sorted.length - 1];
+      System.arraycopy(sorted, 0, result, 0, pos);
+      System.arraycopy(sorted, pos + 1, result, pos, result.length - pos);
+      return result;
+   }//end remove
+
+   // returns a copy of a sorted array with value added, or the array itself if present
+   private static int[] insert(int[] sorted, int value){
+      int pos = Arrays.binarySearch(sorted, value);
+      if (pos >= 0) return sorted;
+      pos = -pos - 1;
+      int[] result = new int[sorted.length + 1];
+      System.arraycopy(sorted, 0, result, 0, pos);
+      result[pos] = value;
+      System.arraycopy(sorted, pos, result, pos + 1, sorted.length - pos);
+      return result;
+   }//end insert
+
+   private static int[] sortedUnique(int[] values){
+      Arrays.sort(values);
+      int n = 0;
+      for (int i = 0; i < values.length; i++){
+         if (n == 0 || values[n - 1] != values[i])
+            values[n++] = values[i];
+      }//end for
+      return n == values.length ? values : Arrays.copyOf(values, n);
+   }//end sortedUnique
+
+}//end ConnectionGraph
@@ -0,0 +1,211 @@
+/*
+ * Hedged reads
+ * =============================
+ *
+ * Tail latency guard for idempotent reads. A hedged read runs on the
+ * caller's session as usual; if it has not answered by the recent p99 of
+ * reads in its operation's cost class (see AdmissionControl.Cost), the same
+ * query is issued again on a pooled session (see AsyncPool). Whichever copy
+ * answers first is used and the other is cancelled.
+ *
+ * A read is only hedged when it runs for an admitted operation, once its
+ * class has enough samples for a p99, and when the hedge could still
+ * answer within the operation's budget.
+ *
+ *    -Dprofnetwork.hedge=false   turns hedging off
+ *    -Dprofnetwork.hedgeMinMs    smallest hedge delay (default 20)
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs reads with a backup copy on a pooled session when they are slow.
+ */
+public class HedgedReads {
+
+   private static final boolean ENABLED = !"false".equals(System.getProperty("profnetwork.hedge"));
+   private static final long MIN_DELAY_MILLIS = Long.getLong("profnetwork.hedgeMinMs", 20L);
+
+   // recent latencies kept per class, how many are needed before hedging,
+   // and how often the p99 is recomputed from them
+   private static final int SAMPLES = 512;
+   private static final int MIN_SAMPLES = 100;
+   private static final int RECOMPUTE_EVERY = 32;
+
+   private static final Latencies[] latencies = new Latencies[AdmissionControl.Cost.values().length];
+   static {
+      for (int i = 0; i < latencies.length; i++)
+         latencies[i] = new Latencies();
+   }
+
+   private static final AtomicLong reads = new AtomicLong();
+   private static final AtomicLong hedged = new AtomicLong();
+   private static final AtomicLong backupWins = new AtomicLong();
+
+   // starts the backups when their delay is up
+   private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "hedged-reads");
+      t.setDaemon(true);
+      return t;
+   });
+   static {
+      timer.setRemoveOnCancelPolicy(true);
+   }
+
+   /**
+    * Runs a read on the primary session, hedged onto the pool when slow.
+    *
+    * @param primary the caller's session, in auto commit mode
+    * @param pool the pool of sessions to the same database
+    * @param query an idempotent SELECT
+    * @return the query result
+    * @throws java.sql.SQLException the primary's exception, unless the backup answered
+    */
+   static List<List<String>> run(ProfNetwork primary, AsyncPool pool, String query) throws SQLException {
+      AdmissionControl.Budget budget = AdmissionControl.currentBudget();
+      reads.incrementAndGet();
+      long start = System.nanoTime();
+
+      Race race = null;
+      if (ENABLED && budget != null){
+         long delay = latencies[budget.cost.ordinal()].hedgeDelayMillis();
+         if (delay < budget.remainingMillis())
+            race = new Race(primary, pool, query, delay);
+      }//end if
+
+      List<List<String>> result;
+      if (race == null){
+         result = primary.executeQueryAndReturnResult(query);
+      }else{
+         try{
+            result = primary.executeQueryAndReturnResult(query);
+            race.primaryEnded(false);
+         }catch (SQLException e){
+            result = race.primaryEnded(true);
+            if (result == null) throw e;
+            backupWins.incrementAndGet();
+         }//end try
+      }//end if
+      if (budget != null)
+         latencies[budget.cost.ordinal()].add(System.nanoTime() - start);
+      return result;
+   }//end run
+
+   /**
+    * @return hedged reads and backup wins, for reports
+    */
+   static String stats(){
+      return String.format("%d reads, %d hedged, %d answered by the backup",
+                           reads.get(), hedged.get(), backupWins.get());
+   }//end stats
+
+   /**
+    * One hedged read: the primary attempt on the caller's thread and, once
+    * the delay is up, a backup on a pooled session. Each side only cancels
+    * the other while that side is still running its statement, so a
+    * cancel never reaches a later statement of the same session.
+    */
+   private static class Race {
+      private final ProfNetwork _primary;
+      private final ScheduledFuture<?> _timer;
+      private volatile CompletableFuture<List<List<String>>> _backup;
+
+      // guarded by this
+      private boolean _primaryDone;
+      private ProfNetwork _backupSession;
+
+      Race(ProfNetwork primary, final AsyncPool pool, final String query, long delayMillis){
+         this._primary = primary;
+         this._timer = timer.schedule(() -> hedge(pool, query), delayMillis, TimeUnit.MILLISECONDS);
+      }
+
+      // the delay is up: issue the backup, unless the primary answered meanwhile
+      private void hedge(AsyncPool pool, final String query){
+         synchronized (this){
+            if (this._primaryDone) return;
+         }
+         hedged.incrementAndGet();
+         CompletableFuture<List<List<String>>> backup = pool.submit(session -> {
+            synchronized (this){
+               if (this._primaryDone) return null;
+               this._backupSession = session;
+            }
+            try{
+               return session.executeQueryAndReturnResult(query);
+            }finally{
+               synchronized (this){
+                  this._backupSession = null;
+               }
+            }//end try
+         });
+         this._backup = backup;
+         backup.thenRun(this::backupAnswered);
+      }//end hedge
+
+      // the backup answered first: stop the primary, whose call then fails
+      // and picks up the backup's result in primaryEnded
+      private synchronized void backupAnswered(){
+         if (!this._primaryDone)
+            this._primary.cancel();
+      }//end backupAnswered
+
+      /**
+       * The primary attempt ended. After a success the backup is stopped;
+       * after a failure the backup's result is returned if it has one.
+       *
+       * @return the backup's result, or null
+       */
+      List<List<String>> primaryEnded(boolean failed){
+         synchronized (this){
+            this._primaryDone = true;
+            this._timer.cancel(false);
+            if (!failed){
+               if (this._backupSession != null) this._backupSession.cancel();
+               return null;
+            }//end if
+         }
+         CompletableFuture<List<List<String>>> backup = this._backup;
+         if (backup == null || !backup.isDone() || backup.isCompletedExceptionally())
+            return null;
+         return backup.join();
+      }//end primaryEnded
+   }//end Race
+
+   /**
+    * Recent read latencies of one cost class and their p99.
+    */
+   private static class Latencies {
+      private final long[] _samples = new long[SAMPLES];
+      private long _count;
+      private volatile long _p99Millis = Long.MAX_VALUE;
+
+      synchronized void add(long nanos){
+         this._samples[(int) (this._count % SAMPLES)] = nanos;
+         this._count++;
+         if (this._count >= MIN_SAMPLES && this._count % RECOMPUTE_EVERY == 0){
+            long[] sorted = Arrays.copyOf(this._samples, (int) Math.min(this._count, SAMPLES));
+            Arrays.sort(sorted);
+            this._p99Millis = sorted[(int) (sorted.length * 0.99)] / 1000000L;
+         }//end if
+      }//end add
+
+      // how long a read waits before it is hedged; never, until there are
+      // enough samples
+      long hedgeDelayMillis(){
+         long p99 = this._p99Millis;
+         return p99 == Long.MAX_VALUE ? p99 : Math.max(MIN_DELAY_MILLIS, p99);
+      }//end hedgeDelayMillis
+   }//end Latencies
+
+}//end HedgedReads
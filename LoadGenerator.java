@@ -0,0 +1,332 @@
+/*
+ * Load generator
+ * =============================
+ *
+ * Creates a synthetic population (users, profiles, a power-law connection
+ * graph and a message history) and then drives a configurable mix of
+ * operations from many concurrent sessions, reporting throughput and
+ * latency percentiles per operation.
+ *
+ * Operations call the same non-interactive methods the menus use, so the
+ * SQL measured is the SQL the application runs.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Usage: java LoadGenerator &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [key=value ...]
+ *
+ *   users=1000        synthetic users to create
+ *   edges=3           connections each new user makes (preferential attachment)
+ *   messages=10       messages per user in the generated history
+ *   populate=true     create the population before running (false reuses it)
+ *   sessions=8        concurrent simulated sessions
+ *   seconds=30        length of the run
+ *   mix=login=20,send-request=5,friend-list=25,new-message=10,view-messages=25,search-people=15
+ */
+public class LoadGenerator {
+
+   // synthetic userIds are PREFIX followed by a zero padded number
+   private static final String PREFIX = "lg";
+
+   // rows per multi-row INSERT while populating
+   private static final int INSERT_BATCH = 500;
+
+   private static final String[] COMPANIES = { "Acme", "Globex", "Initech", "Umbrella", "Hooli", "Stark", "Wayne", "Wonka" };
+   private static final String[] INSTITUTIONS = { "UC Riverside", "UCLA", "Berkeley", "Stanford", "MIT", "CMU" };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3){
+         System.err.println("Usage: java [-classpath <classpath>] " + LoadGenerator.class.getName()
+            + " <dbname> <port> <user> [users=N] [edges=N] [messages=N] [populate=true|false]"
+            + " [sessions=N] [seconds=N] [mix=op=weight,...]");
+         return;
+      }//end if
+
+      Map<String, String> opts = new HashMap<String, String>();
+      opts.put("users", "1000");
+      opts.put("edges", "3");
+      opts.put("messages", "10");
+      opts.put("populate", "true");
+      opts.put("sessions", "8");
+      opts.put("seconds", "30");
+      opts.put("mix", "login=20,send-request=5,friend-list=25,new-message=10,view-messages=25,search-people=15");
+      for (int i = 3; i < args.length; i++){
+         int eq = args[i].indexOf('=');
+         if (eq < 0)
+            throw new IllegalArgumentException("expected key=value: " + args[i]);
+         opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+      }//end for
+
+      Class.forName("org.postgresql.Driver");
+      ProfNetwork esql = new ProfNetwork(args[0], args[1], args[2], "");
+      try{
+         int users = Integer.parseInt(opts.get("users"));
+         if (Boolean.parseBoolean(opts.get("populate")))
+            populate(esql, users, Integer.parseInt(opts.get("edges")), Integer.parseInt(opts.get("messages")));
+         run(esql, users, parseMix(opts.get("mix")),
+            Integer.parseInt(opts.get("sessions")), Integer.parseInt(opts.get("seconds")));
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   static String userId(int i){
+      return String.format("%s%07d", PREFIX, i);
+   }//end userId
+
+   static String name(int i){
+      return "Load User " + i;
+   }//end name
+
+   /**
+    * Creates users with profiles, a power-law connection graph and a
+    * message history. Rows are written with multi-row INSERTs.
+    */
+   static void populate(ProfNetwork esql, int users, int edgesPerUser, int messagesPerUser) throws SQLException {
+      long start = System.nanoTime();
+      Random random = new Random(42);
+
+      Batch usr = new Batch(esql, "INSERT INTO USR(userId, password, email, name, dateOfBirth) VALUES ");
+      Batch work = new Batch(esql, "INSERT INTO WORK_EXPR(userId, company, role, location, startDate, endDate) VALUES ");
+      Batch edu = new Batch(esql, "INSERT INTO EDUCATIONAL_DETAILS(userId, institutionName, major, degree, startDate, endDate) VALUES ");
+      for (int i = 0; i < users; i++){
+         usr.add(String.format("('%s', 'pw%d', '%s@example.com', '%s', '%d-01-01')",
+            userId(i), i, userId(i), name(i), 1960 + random.nextInt(40)));
+         work.add(String.format("('%s', '%s', 'Engineer', 'Riverside', '2015-01-01', '2020-01-01')",
+            userId(i), COMPANIES[random.nextInt(COMPANIES.length)]));
+         edu.add(String.format("('%s', '%s', 'Computer Science', 'BS', '2010-09-01', '2014-06-01')",
+            userId(i), INSTITUTIONS[random.nextInt(INSTITUTIONS.length)]));
+      }//end for
+      usr.flush();
+      work.flush();
+      edu.flush();
+
+      // preferential attachment: each new user connects to edgesPerUser
+      // earlier users chosen with probability proportional to their degree
+      List<Integer> endpoints = new ArrayList<Integer>();
+      List<List<Integer>> friends = new ArrayList<List<Integer>>();
+      Batch conn = new Batch(esql, "INSERT INTO CONNECTION_USR(userId, connectionId, status) VALUES ");
+      for (int i = 0; i < users; i++){
+         friends.add(new ArrayList<Integer>());
+         List<Integer> chosen = friends.get(i);
+         int want = Math.min(edgesPerUser, i);
+         while (chosen.size() < want){
+            int j = endpoints.isEmpty() ? random.nextInt(i) : endpoints.get(random.nextInt(endpoints.size()));
+            if (j != i && !chosen.contains(j))
+               chosen.add(j);
+         }//end while
+         for (int j : chosen){
+            conn.add(String.format("('%s', '%s', 'Accept')", userId(i), userId(j)));
+            friends.get(j).add(i);
+            endpoints.add(i);
+            endpoints.add(j);
+         }//end for
+      }//end for
+      conn.flush();
+
+      // message history, mostly between connections, heavy users send more
+      List<List<String>> max = esql.executeQueryAndReturnResult("SELECT COALESCE(MAX(msgId), 0) FROM MESSAGE");
+      long msgId = Long.parseLong(max.get(0).get(0));
+      long now = System.currentTimeMillis();
+      Batch msg = new Batch(esql, "INSERT INTO MESSAGE(msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) VALUES ");
+      long total = (long) users * messagesPerUser;
+      for (long m = 0; m < total; m++){
+         int sender = endpoints.isEmpty() ? random.nextInt(users) : endpoints.get(random.nextInt(endpoints.size()));
+         List<Integer> own = friends.get(sender);
+         int receiver = own.isEmpty() ? random.nextInt(users) : own.get(random.nextInt(own.size()));
+         Timestamp sent = new Timestamp(now - (long) random.nextInt(365 * 24 * 3600) * 1000);
+         msg.add(String.format("('%d', '%s', '%s', 'synthetic message %d', '%s', '0', '%s')",
+            ++msgId, userId(sender), userId(receiver), m, sent, random.nextBoolean() ? "Read" : "Delivered"));
+      }//end for
+      msg.flush();
+
+      System.out.printf("Populated %d users, %d connections, %d messages in %.1fs%n",
+         users, endpoints.size() / 2, total, (System.nanoTime() - start) / 1e9);
+   }//end populate
+
+   // op name -> relative weight, in the order given
+   static Map<String, Integer> parseMix(String mix){
+      Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+      for (String part : mix.split(",")){
+         String[] kv = part.trim().split("=");
+         weights.put(kv[0], Integer.parseInt(kv[1]));
+      }//end for
+      return weights;
+   }//end parseMix
+
+   /**
+    * Runs the operation mix from concurrent sessions and prints the report.
+    */
+   static void run(final ProfNetwork esql, final int users, Map<String, Integer> mix, int sessions, int seconds) throws Exception {
+      final String[] ops = mix.keySet().toArray(new String[0]);
+      final int[] cumulative = new int[ops.length];
+      int sum = 0;
+      for (int i = 0; i < ops.length; i++){
+         sum += mix.get(ops[i]);
+         cumulative[i] = sum;
+      }//end for
+      final int totalWeight = sum;
+
+      final Map<String, Histogram> latencies = new LinkedHashMap<String, Histogram>();
+      for (String op : ops)
+         latencies.put(op, new Histogram());
+
+      final long deadline = System.nanoTime() + seconds * 1000000000L;
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int s = 0; s < sessions; s++){
+         Thread t = new Thread("session-" + s){
+            public void run(){
+               ProfNetwork session = null;
+               try{
+                  session = esql.openSession();
+                  ThreadLocalRandom random = ThreadLocalRandom.current();
+                  while (System.nanoTime() < deadline){
+                     int pick = random.nextInt(totalWeight);
+                     int op = 0;
+                     while (cumulative[op] <= pick) op++;
+                     long begin = System.nanoTime();
+                     boolean ok = execute(session, ops[op], users, random);
+                     latencies.get(ops[op]).record(System.nanoTime() - begin, ok);
+                  }//end while
+               }catch (SQLException e){
+                  System.err.println(getName() + ": " + e.getMessage());
+               }finally{
+                  if (session != null) session.cleanup();
+               }//end try
+            }
+         };
+         threads.add(t);
+         t.start();
+      }//end for
+      for (Thread t : threads)
+         t.join();
+
+      System.out.printf("%n%-15s %10s %8s %10s %10s %10s %10s%n", "operation", "count", "errors", "ops/s", "p50 ms", "p95 ms", "p99 ms");
+      for (String op : ops){
+         Histogram h = latencies.get(op);
+         System.out.printf("%-15s %10d %8d %10.1f %10.2f %10.2f %10.2f%n", op, h.count(), h.errors(),
+            h.count() / (double) seconds, h.percentile(0.50), h.percentile(0.95), h.percentile(0.99));
+      }//end for
+      System.out.println("admission: " + ProfNetwork.admission.stats());
+      System.out.println("hedged reads: " + HedgedReads.stats());
+      System.out.println("query cache: " + ProfNetwork.queryCache.stats());
+      System.out.println("user ids: " + ProfNetwork.userIds.stats());
+      System.out.print("most active:\n" + ProfNetwork.activity.snapshot());
+   }//end run
+
+   /**
+    * Performs one operation as a random user.
+    *
+    * @return false if the operation failed
+    */
+   static boolean execute(ProfNetwork session, String op, int users, ThreadLocalRandom random){
+      int me = random.nextInt(users);
+      // anyone but me, so a user never sends a request to themselves
+      int other = users > 1 ? (me + 1 + random.nextInt(users - 1)) % users : me;
+      try{
+         if (op.equals("login"))
+            ProfNetwork.checkLogin(session, userId(me), "pw" + me);
+         else if (op.equals("send-request"))
+            ProfNetwork.requestConnection(session, userId(me), userId(other));
+         else if (op.equals("friend-list"))
+            ProfNetwork.friendIds(session, userId(me));
+         else if (op.equals("new-message"))
+            ProfNetwork.sendMessage(session, userId(me), userId(other), "load test message");
+         else if (op.equals("view-messages"))
+            ProfNetwork.receivedMessages(session, userId(me));
+         else if (op.equals("search-people"))
+            ProfNetwork.searchPeople(session, userId(me), name(other));
+         else
+            throw new IllegalArgumentException("unknown operation: " + op);
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end execute
+
+   /**
+    * Accumulates VALUES tuples and writes them as one multi-row INSERT.
+    */
+   static class Batch {
+      private final ProfNetwork _esql;
+      private final String _insert;
+      private final StringBuilder _values = new StringBuilder();
+      private int _rows = 0;
+
+      Batch(ProfNetwork esql, String insert){
+         this._esql = esql;
+         this._insert = insert;
+      }
+
+      void add(String tuple) throws SQLException {
+         if (this._rows > 0) this._values.append(", ");
+         this._values.append(tuple);
+         if (++this._rows == INSERT_BATCH) flush();
+      }
+
+      void flush() throws SQLException {
+         if (this._rows == 0) return;
+         this._esql.executeUpdate(this._insert + this._values);
+         this._values.setLength(0);
+         this._rows = 0;
+      }
+   }//end Batch
+
+   /**
+    * Lock-free latency histogram with log-linear buckets, each about 5%
+    * wide, from 1 microsecond up.
+    */
+   static class Histogram {
+      private static final double GROWTH = 1.05;
+      private static final int BUCKETS = 512;
+      private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+      private final AtomicLong _count = new AtomicLong();
+      private final AtomicLong _errors = new AtomicLong();
+
+      void record(long nanos, boolean ok){
+         double micros = nanos / 1000.0;
+         int bucket = micros < 1 ? 0 : 1 + (int) (Math.log(micros) / Math.log(GROWTH));
+         this._buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+         this._count.incrementAndGet();
+         if (!ok) this._errors.incrementAndGet();
+      }
+
+      long count(){
+         return this._count.get();
+      }
+
+      long errors(){
+         return this._errors.get();
+      }
+
+      // upper bound of the bucket holding the q-th quantile, in milliseconds
+      double percentile(double q){
+         long total = this._count.get();
+         if (total == 0) return 0;
+         long rank = (long) Math.ceil(q * total);
+         long seen = 0;
+         for (int i = 0; i < BUCKETS; i++){
+            seen += this._buckets.get(i);
+            if (seen >= rank)
+               return Math.pow(GROWTH, i) / 1000.0;
+         }//end for
+         return Math.pow(GROWTH, BUCKETS - 1) / 1000.0;
+      }
+   }//end Histogram
+
+}//end LoadGenerator
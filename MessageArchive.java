@@ -0,0 +1,393 @@
+/*
+ * Message archive
+ * =============================
+ *
+ * Cold storage for old MESSAGE rows. Archiving moves messages older than a
+ * given age out of the table into append-only segment files on local disk;
+ * inbox and conversation reads merge them back in.
+ *
+ * A segment is two files:
+ *
+ *    <name>.seg  one deflate-compressed block per conversation (unordered
+ *                user pair), each holding that pair's messages in time order
+ *    <name>.idx  a sorted (user, other user) -> block offset index, memory
+ *                mapped and binary searched; written last, so a segment
+ *                without one is incomplete and ignored
+ *
+ * Archived messages are read-only: deleting one from the menus has no
+ * effect on the archived copy.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reader and writer of archive segments in one directory. Rows are returned
+ * in the column order of SELECT * FROM MESSAGE: msgId, senderId,
+ * receiverId, contents, sendTime, deleteStatus, status.
+ */
+public class MessageArchive {
+
+   private static final int INDEX_MAGIC = 0x504E4D41; // "PNMA"
+
+   // column positions in a MESSAGE row
+   static final int MSG_ID = 0, SENDER = 1, RECEIVER = 2, SEND_TIME = 4;
+
+   private final File _dir;
+
+   // segments already opened, by index file name
+   private final Map<String, Segment> _segments = new LinkedHashMap<String, Segment>();
+   private long _scanned = -1;
+
+   public MessageArchive(File dir){
+      this._dir = dir;
+   }
+
+   /**
+    * Moves messages sent more than the given number of days ago into a new
+    * segment. The segment is written and synced before the rows are deleted,
+    * inside the caller's transaction; if that transaction rolls back, the
+    * messages exist in both places and reads drop the archived copies.
+    * The newest message is never archived, so MAX(msgId) keeps growing.
+    *
+    * @param esql the database session
+    * @param days minimum age of the messages to archive
+    * @return the number of messages archived
+    * @throws java.sql.SQLException when the messages could not be read or deleted
+    * @throws java.io.IOException when the segment could not be written
+    */
+   public int archive(ProfNetwork esql, int days) throws SQLException, IOException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT msgId, senderId, receiverId, contents, sendTime, deleteStatus, status FROM MESSAGE " +
+         "WHERE sendTime < now() - interval '%d days' AND msgId < (SELECT MAX(msgId) FROM MESSAGE) " +
+         "ORDER BY least(senderId, receiverId), greatest(senderId, receiverId), sendTime, msgId FOR UPDATE", days));
+      if (rows.isEmpty()) return 0;
+
+      for (List<String> row : rows){
+         row.set(SENDER, row.get(SENDER).trim());
+         row.set(RECEIVER, row.get(RECEIVER).trim());
+      }//end for
+
+      if (!this._dir.isDirectory() && !this._dir.mkdirs())
+         throw new IOException("cannot create " + this._dir);
+      String name = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+      writeSegment(new File(this._dir, "segment-" + name + ".seg"), new File(this._dir, "segment-" + name + ".idx"), rows);
+
+      String[] ids = new String[rows.size()];
+      for (int i = 0; i < ids.length; i++)
+         ids[i] = rows.get(i).get(MSG_ID);
+      esql.executePreparedAndReturnResult("DELETE FROM MESSAGE WHERE msgId = ANY(?::int[])", (Object) ids);
+      return rows.size();
+   }//end archive
+
+   /**
+    * @return archived messages received by a user
+    */
+   public List<List<String>> received(String userId) throws IOException {
+      return read(userId.trim(), null, RECEIVER);
+   }//end received
+
+   /**
+    * @return archived messages sent by a user
+    */
+   public List<List<String>> sent(String userId) throws IOException {
+      return read(userId.trim(), null, SENDER);
+   }//end sent
+
+   /**
+    * @return archived messages between two users, oldest first
+    */
+   public List<List<String>> conversation(String userId, String other) throws IOException {
+      List<List<String>> rows = read(userId.trim(), other.trim(), -1);
+      Collections.sort(rows, BY_TIME);
+      return rows;
+   }//end conversation
+
+   // sendTime, then msgId, as in the conversation index
+   static final Comparator<List<String>> BY_TIME = new Comparator<List<String>>(){
+      public int compare(List<String> a, List<String> b){
+         int c = a.get(SEND_TIME).compareTo(b.get(SEND_TIME));
+         return c != 0 ? c : Long.compare(Long.parseLong(a.get(MSG_ID).trim()), Long.parseLong(b.get(MSG_ID).trim()));
+      }
+   };
+
+   // rows of user's blocks (only those shared with other, when given) where
+   // column matches user; column -1 keeps every row
+   private synchronized List<List<String>> read(String user, String other, int column) throws IOException {
+      refresh();
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (Segment segment : this._segments.values()){
+         for (long[] block : segment.blocks(user, other)){
+            for (List<String> row : segment.readBlock(block[0], (int) block[1]))
+               if (column < 0 || row.get(column).equals(user))
+                  result.add(row);
+         }//end for
+      }//end for
+      return result;
+   }//end read
+
+   // opens segments added to the directory since the last scan
+   private void refresh() throws IOException {
+      if (this._dir.lastModified() == this._scanned) return;
+      this._scanned = this._dir.lastModified();
+      File[] files = this._dir.listFiles();
+      if (files == null) return;
+      Arrays.sort(files);
+      for (File idx : files){
+         String name = idx.getName();
+         if (!name.endsWith(".idx") || this._segments.containsKey(name)) continue;
+         File seg = new File(this._dir, name.substring(0, name.length() - 4) + ".seg");
+         this._segments.put(name, new Segment(seg, idx));
+      }//end for
+   }//end refresh
+
+   private static void writeSegment(File seg, File idx, List<List<String>> rows) throws IOException {
+      // one block per conversation; rows arrive grouped by pair
+      List<String[]> keys = new ArrayList<String[]>();   // user, other
+      List<long[]> blocks = new ArrayList<long[]>();     // offset, length
+      FileOutputStream segOut = new FileOutputStream(seg);
+      try{
+         long offset = 0;
+         int start = 0;
+         while (start < rows.size()){
+            String a = pairLow(rows.get(start)), b = pairHigh(rows.get(start));
+            int end = start;
+            while (end < rows.size() && pairLow(rows.get(end)).equals(a) && pairHigh(rows.get(end)).equals(b))
+               end++;
+
+            byte[] block = compress(encode(rows.subList(start, end)));
+            segOut.write(block);
+            keys.add(new String[] { a, b });
+            blocks.add(new long[] { offset, block.length });
+            if (!a.equals(b)){
+               keys.add(new String[] { b, a });
+               blocks.add(new long[] { offset, block.length });
+            }//end if
+            offset += block.length;
+            start = end;
+         }//end while
+         segOut.getFD().sync();
+      }finally{
+         segOut.close();
+      }//end try
+
+      // index entries sorted by (user, other)
+      Integer[] order = new Integer[keys.size()];
+      for (int i = 0; i < order.length; i++) order[i] = i;
+      Arrays.sort(order, (x, y) -> {
+         int c = keys.get(x)[0].compareTo(keys.get(y)[0]);
+         return c != 0 ? c : keys.get(x)[1].compareTo(keys.get(y)[1]);
+      });
+
+      ByteArrayOutputStream entries = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(entries);
+      int[] positions = new int[order.length];
+      for (int i = 0; i < order.length; i++){
+         positions[i] = out.size();
+         writeString(out, keys.get(order[i])[0]);
+         writeString(out, keys.get(order[i])[1]);
+         out.writeLong(blocks.get(order[i])[0]);
+         out.writeInt((int) blocks.get(order[i])[1]);
+      }//end for
+      out.flush();
+
+      File tmp = new File(idx.getPath() + ".tmp");
+      FileOutputStream idxFile = new FileOutputStream(tmp);
+      DataOutputStream idxOut = new DataOutputStream(idxFile);
+      try{
+         idxOut.writeInt(INDEX_MAGIC);
+         idxOut.writeInt(positions.length);
+         int base = 8 + 4 * positions.length;
+         for (int p : positions)
+            idxOut.writeInt(base + p);
+         entries.writeTo(idxOut);
+         idxOut.flush();
+         idxFile.getFD().sync();
+      }finally{
+         idxOut.close();
+      }//end try
+      if (!tmp.renameTo(idx))
+         throw new IOException("cannot rename " + tmp + " to " + idx);
+   }//end writeSegment
+
+   private static String pairLow(List<String> row){
+      String s = row.get(SENDER), r = row.get(RECEIVER);
+      return s.compareTo(r) <= 0 ? s : r;
+   }//end pairLow
+
+   private static String pairHigh(List<String> row){
+      String s = row.get(SENDER), r = row.get(RECEIVER);
+      return s.compareTo(r) <= 0 ? r : s;
+   }//end pairHigh
+
+   private static byte[] encode(List<List<String>> rows) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(rows.size());
+      for (List<String> row : rows){
+         out.writeByte(row.size());
+         for (String value : row)
+            writeString(out, value);
+      }//end for
+      out.flush();
+      return bytes.toByteArray();
+   }//end encode
+
+   private static byte[] compress(byte[] raw){
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+      byte[] buf = new byte[8192];
+      while (!deflater.finished())
+         out.write(buf, 0, deflater.deflate(buf));
+      deflater.end();
+      return out.toByteArray();
+   }//end compress
+
+   // null-aware string: length -1 for null, else UTF-8 length and bytes
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      if (value == null){
+         out.writeInt(-1);
+         return;
+      }//end if
+      byte[] b = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(b.length);
+      out.write(b);
+   }//end writeString
+
+   private static String readString(ByteBuffer buf){
+      int len = buf.getInt();
+      if (len < 0) return null;
+      byte[] b = new byte[len];
+      buf.get(b);
+      return new String(b, StandardCharsets.UTF_8);
+   }//end readString
+
+   private static String readString(DataInputStream in) throws IOException {
+      int len = in.readInt();
+      if (len < 0) return null;
+      byte[] b = new byte[len];
+      in.readFully(b);
+      return new String(b, StandardCharsets.UTF_8);
+   }//end readString
+
+   /**
+    * An open segment: its index mapped in memory, its blocks read on demand.
+    */
+   private static class Segment {
+      private final File _seg;
+      private final MappedByteBuffer _idx;
+      private final int _count;
+
+      Segment(File seg, File idx) throws IOException {
+         this._seg = seg;
+         RandomAccessFile raf = new RandomAccessFile(idx, "r");
+         try{
+            this._idx = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+         }finally{
+            raf.close();
+         }//end try
+         if (this._idx.getInt(0) != INDEX_MAGIC)
+            throw new IOException(idx + " is not an archive index");
+         this._count = this._idx.getInt(4);
+      }
+
+      // (offset, length) of the blocks indexed under user, optionally only the one shared with other
+      List<long[]> blocks(String user, String other){
+         List<long[]> result = new ArrayList<long[]>();
+         int lo = 0, hi = this._count;
+         while (lo < hi){          // first entry with key >= user
+            int mid = (lo + hi) >>> 1;
+            if (key(mid).compareTo(user) < 0) lo = mid + 1;
+            else hi = mid;
+         }//end while
+         for (int i = lo; i < this._count; i++){
+            ByteBuffer e = this._idx.duplicate();
+            e.position(this._idx.getInt(8 + 4 * i));
+            if (!readString(e).equals(user)) break;
+            String partner = readString(e);
+            long offset = e.getLong();
+            int length = e.getInt();
+            if (other == null || other.equals(partner))
+               result.add(new long[] { offset, length });
+         }//end for
+         return result;
+      }//end blocks
+
+      // user of the i-th index entry
+      private String key(int i){
+         ByteBuffer e = this._idx.duplicate();
+         e.position(this._idx.getInt(8 + 4 * i));
+         return readString(e);
+      }//end key
+
+      List<List<String>> readBlock(long offset, int length) throws IOException {
+         byte[] compressed = new byte[length];
+         RandomAccessFile raf = new RandomAccessFile(this._seg, "r");
+         try{
+            raf.seek(offset);
+            raf.readFully(compressed);
+         }finally{
+            raf.close();
+         }//end try
+
+         Inflater inflater = new Inflater();
+         ByteArrayOutputStream raw = new ByteArrayOutputStream(length * 4);
+         try{
+            inflater.setInput(compressed);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()){
+               int n = inflater.inflate(buf);
+               if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                  throw new IOException("truncated block in " + this._seg);
+               raw.write(buf, 0, n);
+            }//end while
+         }catch (DataFormatException e){
+            throw new IOException("corrupt block in " + this._seg, e);
+         }finally{
+            inflater.end();
+         }//end try
+
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw.toByteArray()));
+         int rows = in.readInt();
+         List<List<String>> result = new ArrayList<List<String>>(rows);
+         for (int r = 0; r < rows; r++){
+            int cols = in.readByte();
+            List<String> row = new ArrayList<String>(cols);
+            for (int c = 0; c < cols; c++)
+               row.add(readString(in));
+            result.add(row);
+         }//end for
+         return result;
+      }//end readBlock
+   }//end Segment
+
+}//end MessageArchive
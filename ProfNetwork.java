@@ -17,16 +17,27 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.sql.Timestamp;
 
 /**
@@ -39,6 +50,38 @@ public class ProfNetwork {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // connection settings, kept so further sessions can be opened
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // client side timeout (seconds) applied to every statement we issue.
+   private static final int QUERY_TIMEOUT =
+      Integer.getInteger("profnetwork.queryTimeout", 30);
+
+   // server side limits (milliseconds) set once per session, so a statement
+   // is stopped by postgres even if this client goes away.
+   private static final int STATEMENT_TIMEOUT_MS =
+      Integer.getInteger("profnetwork.statementTimeoutMs", 30000);
+   private static final int LOCK_TIMEOUT_MS =
+      Integer.getInteger("profnetwork.lockTimeoutMs", 5000);
+
+   // dense int ids for userIds, shared by the in-memory caches of this process
+   static final UserIds userIds = new UserIds();
+
+   // results of recent SELECTs, shared by every session of this process
+   static final QueryCache queryCache = new QueryCache();
+
+   // false inside an explicit transaction, where cached results are bypassed
+   private volatile boolean _autoCommit = true;
+
+   // tables written in the current transaction, invalidated again when it ends
+   private final Set<String> _written = ConcurrentHashMap.newKeySet();
+
+   // statements currently executing, so they can be cancelled from another thread.
+   private final Set<Statement> _running =
+      Collections.newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -47,6 +90,39 @@ public class ProfNetwork {
 	// storing user for later use
 	private static String loggedinUser = null;
 
+	// in-memory connection graph and suggestions, loaded on first use.
+	// volatile: the cache listener thread replaces or drops them.
+	private static volatile ConnectionGraph graph = null;
+	private static volatile Recommendations recommendations = null;
+
+	// every userId, for existence checks without a query; loaded at startup
+	private static volatile UserDirectory directory = null;
+
+	// company/role/location/institution/major/degree search, loaded on first search
+	private static volatile ProfileIndex profileIndex = null;
+
+	// rate limits and concurrency limits per cost class for the operations below
+	static final AdmissionControl admission = new AdmissionControl();
+
+	// most active senders, requesters and most viewed profiles
+	static final ActivityStats activity = new ActivityStats(userIds);
+
+	// unread message and pending request counts shown on the main menu
+	private static final BadgeCounters counters = new BadgeCounters(userIds);
+
+	// where the connection graph is saved between runs
+	private static final File GRAPH_SNAPSHOT =
+		new File(System.getProperty("profnetwork.graphSnapshot", "connection_graph.snap"));
+
+	// where archived messages are kept (see MessageArchive)
+	private static final MessageArchive archive =
+		new MessageArchive(new File(System.getProperty("profnetwork.archiveDir", "message_archive")));
+
+	// degree of separation limits: beyond 3rd degree is not worth showing,
+	// and a profile page should not wait on the search
+	private static final int MAX_SEPARATION = 3;
+	private static final long SEPARATION_BUDGET_NANOS = 50L * 1000 * 1000;
+
    /**
     * Creates a new instance of ProfNetwork
     *
@@ -63,9 +139,13 @@ public class ProfNetwork {
          // constructs the connection URL
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this.setSessionTimeouts();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -74,22 +154,90 @@ public class ProfNetwork {
       }//end catch
    }//end ProfNetwork
 
+   // wraps an already opened connection, see openSession()
+   private ProfNetwork (String url, String user, String passwd, Connection connection) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._connection = connection;
+      this.setSessionTimeouts();
+   }//end ProfNetwork
+
+   /**
+    * Opens a second, independent session to the same database, for work
+    * done on other threads.
+    *
+    * @return a new session; the caller must cleanup() it
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public ProfNetwork openSession() throws SQLException {
+      Connection connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+      return new ProfNetwork(this._url, this._user, this._passwd, connection);
+   }//end openSession
+
+   /**
+    * Creates a session that connects on first use instead of up front, so
+    * startup does not wait on the database. Connection failures surface as
+    * SQLExceptions from the first statement rather than ending the program.
+    */
+   public static ProfNetwork lazy (String dbname, String dbport, String user, String passwd) {
+      return new ProfNetwork ("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd);
+   }//end lazy
+
+   // unconnected session, see lazy()
+   private ProfNetwork (String url, String user, String passwd) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+   }//end ProfNetwork
+
+   /**
+    * @return the physical connection behind this session
+    * @throws java.sql.SQLException when a lazy session failed to connect
+    */
+   Connection getConnection() throws SQLException {
+      return this.connection ();
+   }//end getConnection
+
+   // the physical connection, opened now if this is a lazy session
+   private synchronized Connection connection() throws SQLException {
+      if (this._connection == null){
+         Connection connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+         this._connection = connection;
+         try{
+            this.setSessionTimeouts();
+         }catch (SQLException e){
+            this._connection = null;
+            connection.close ();
+            throw e;
+         }//end try
+      }//end if
+      return this._connection;
+   }//end connection
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
+      ProfilingEvents.StatementEvent event = ProfilingEvents.beginStatement ();
+      int rows = -1;
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+      Statement stmt = this.createStatement ();
+      try{
+         // issues the update instruction
+         rows = stmt.executeUpdate (sql);
+         return rows;
+      }finally{
+         // close the instruction
+         this.closeStatement (stmt);
+         this.wrote (sql);
+         ProfilingEvents.endStatement (event, sql, rows, false);
+      }
    }//end executeUpdate
 
    /**
@@ -102,37 +250,42 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      ProfilingEvents.StatementEvent event = ProfilingEvents.beginStatement ();
+      int rowCount = -1;
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+      Statement stmt = this.createStatement ();
+      try{
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                   System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         return rowCount;
+      }finally{
+         this.closeStatement (stmt);
+         ProfilingEvents.endStatement (event, query, rowCount, false);
+      }
    }//end executeQuery
 
    /**
@@ -145,33 +298,144 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      ProfilingEvents.StatementEvent event = ProfilingEvents.beginStatement ();
+      // answers a repeated read from the cache
+      QueryCache.Lookup lookup = this.cacheLookup (query);
+      if (lookup != null){
+         List<List<String>> cached = queryCache.get (lookup);
+         if (cached != null){
+            ProfilingEvents.endStatement (event, query, cached.size (), true);
+            return cached;
+         }//end if
+      }//end if
+
+      long rows = -1;
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-          List<String> record = new ArrayList<String>();
-         for (int i=1; i<=numCol; ++i)
-            record.add(rs.getString (i));
-         result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      Statement stmt = this.createStatement ();
+      try{
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and saves the data returned by the query.
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+             List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         if (lookup != null)
+            queryCache.put (lookup, result);
+         rows = result.size ();
+         return result;
+      }finally{
+         this.closeStatement (stmt);
+         ProfilingEvents.endStatement (event, query, rows, false);
+      }
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute a query whose columns are all userIds (i.e. SELECT
+    * userId, connectionId FROM ...).  The values are read as bytes and
+    * interned into the shared dictionary (see UserIds), so no String is
+    * created per row.  Results are not cached.
+    *
+    * @param query the input query string
+    * @return the dictionary ids, row after row, one per column; -1 for NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int[] executeQueryAndReturnUserIds (String query) throws SQLException {
+      ProfilingEvents.StatementEvent event = ProfilingEvents.beginStatement ();
+      long rows = -1;
+      // creates a statement object
+      Statement stmt = this.createStatement ();
+      try{
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+         int numCol = rs.getMetaData ().getColumnCount ();
+
+         int[] ids = new int[numCol * 256];
+         int n = 0;
+         while (rs.next()){
+            if (n + numCol > ids.length)
+               ids = Arrays.copyOf (ids, ids.length * 2);
+            for (int i=1; i<=numCol; ++i){
+               byte[] value = rs.getBytes (i);
+               ids[n++] = value == null ? -1 : userIds.intern (value, 0, value.length);
+            }//end for
+         }//end while
+         rows = n / numCol;
+         return Arrays.copyOf (ids, n);
+      }finally{
+         this.closeStatement (stmt);
+         ProfilingEvents.endStatement (event, query, rows, false);
+      }
+   }//end executeQueryAndReturnUserIds
+
+   /**
+    * Runs executeQueryAndReturnResult on a pooled session (see AsyncPool),
+    * so independent queries can be in flight together. Inside an explicit
+    * transaction the query runs at once on this session instead, so that it
+    * sees the transaction's own writes.
+    *
+    * @param query the input query string
+    * @return a future of the query result; wait for it with AsyncPool.await
+    */
+   public CompletableFuture<List<List<String>>> executeQueryAndReturnResultAsync (final String query) {
+      if (!this._autoCommit){
+         CompletableFuture<List<List<String>>> done = new CompletableFuture<List<List<String>>>();
+         try{
+            done.complete (this.executeQueryAndReturnResult (query));
+         }catch (SQLException e){
+            done.completeExceptionally (e);
+         }//end try
+         return done;
+      }//end if
+      return this.asyncPool ().submit (session -> session.executeQueryAndReturnResult (query));
+   }//end executeQueryAndReturnResultAsync
+
+   /**
+    * Like executeQueryAndReturnResult, for an idempotent read that may be
+    * issued twice: when it is slower than usual for its operation class, the
+    * same query is also run on a pooled session and the first answer is
+    * used (see HedgedReads). Not for SELECT ... FOR UPDATE or reads with
+    * side effects. Inside an explicit transaction the query is not hedged.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResultHedged (String query) throws SQLException {
+      if (!this._autoCommit)
+         return this.executeQueryAndReturnResult (query);
+      return HedgedReads.run (this, this.asyncPool (), query);
+   }//end executeQueryAndReturnResultHedged
+
+   /**
+    * Runs executeUpdate on a pooled session. The update commits on its own,
+    * outside any transaction open on this session.
+    *
+    * @param sql the input SQL string
+    * @return a future of the number of rows affected
+    */
+   public CompletableFuture<Integer> executeUpdateAsync (final String sql) {
+      return this.asyncPool ().submit (session -> session.executeUpdate (sql));
+   }//end executeUpdateAsync
+
+   // the pool shared by sessions to this database as this user
+   private AsyncPool asyncPool () {
+      return AsyncPool.of (this._url + "|" + this._user, this);
+   }//end asyncPool
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -181,22 +445,175 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       ProfilingEvents.StatementEvent event = ProfilingEvents.beginStatement ();
+       int rowCount = -1;
        // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       Statement stmt = this.createStatement ();
+       try{
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
 
-       int rowCount = 0;
+          rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+          // iterates through the result set and count nuber of results.
+          if(rs.next()){
+             rowCount++;
+          }//end while
+          return rowCount;
+       }finally{
+          this.closeStatement (stmt);
+          ProfilingEvents.endStatement (event, query, rowCount, false);
+       }
    }
 
+   /**
+    * Method to execute a parameterized SQL instruction.  Parameters are bound
+    * in order; a String[] parameter is bound as a SQL text array, for use with
+    * "= ANY(?)".  Rows produced by the statement (a SELECT, or an update with
+    * RETURNING) are returned as with executeQueryAndReturnResult.
+    *
+    * @param sql the SQL string with ? placeholders
+    * @param params the parameter values
+    * @return the rows produced, empty if none
+    * @throws java.sql.SQLException when failed to execute the statement
+    */
+   public List<List<String>> executePreparedAndReturnResult (String sql, Object... params) throws SQLException {
+      ProfilingEvents.StatementEvent event = ProfilingEvents.beginStatement ();
+      QueryCache.Lookup lookup = this.cacheLookup (sql, params);
+      if (lookup != null){
+         List<List<String>> cached = queryCache.get (lookup);
+         if (cached != null){
+            ProfilingEvents.endStatement (event, sql, cached.size (), true);
+            return cached;
+         }//end if
+      }//end if
+
+      long rows = -1;
+      PreparedStatement stmt = this.prepareStatement (sql, params);
+      try{
+         List<List<String>> result = new ArrayList<List<String>>();
+         if (!stmt.execute ()){
+            rows = stmt.getUpdateCount ();
+            return result;
+         }//end if
+         ResultSet rs = stmt.getResultSet ();
+         int numCol = rs.getMetaData ().getColumnCount ();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         if (lookup != null)
+            queryCache.put (lookup, result);
+         rows = result.size ();
+         return result;
+      }finally{
+         this.closeStatement (stmt);
+         if (lookup == null)
+            this.wrote (sql);
+         ProfilingEvents.endStatement (event, sql, rows, false);
+      }
+   }//end executePreparedAndReturnResult
+
+   /**
+    * Like executePreparedAndReturnResult, but keeps the column values as
+    * objects: SQL arrays (from array_agg, say) come back as Java arrays,
+    * NULL as null.
+    *
+    * @param sql the SQL string with ? placeholders
+    * @param params the parameter values
+    * @return the rows produced, empty if none
+    * @throws java.sql.SQLException when failed to execute the statement
+    */
+   public List<List<Object>> executePreparedAndReturnValues (String sql, Object... params) throws SQLException {
+      ProfilingEvents.StatementEvent event = ProfilingEvents.beginStatement ();
+      QueryCache.Lookup lookup = this.cacheLookup (sql, params);
+      if (lookup != null){
+         List<List<Object>> cached = queryCache.get (lookup);
+         if (cached != null){
+            ProfilingEvents.endStatement (event, sql, cached.size (), true);
+            return cached;
+         }//end if
+      }//end if
+
+      long rows = -1;
+      PreparedStatement stmt = this.prepareStatement (sql, params);
+      try{
+         List<List<Object>> result = new ArrayList<List<Object>>();
+         if (!stmt.execute ()){
+            rows = stmt.getUpdateCount ();
+            return result;
+         }//end if
+         ResultSet rs = stmt.getResultSet ();
+         int numCol = rs.getMetaData ().getColumnCount ();
+         while (rs.next()){
+            List<Object> record = new ArrayList<Object>();
+            for (int i=1; i<=numCol; ++i){
+               Object value = rs.getObject (i);
+               if (value instanceof java.sql.Array)
+                  value = ((java.sql.Array) value).getArray ();
+               record.add(value);
+            }//end for
+            result.add(record);
+         }//end while
+         if (lookup != null)
+            queryCache.put (lookup, result);
+         rows = result.size ();
+         return result;
+      }finally{
+         this.closeStatement (stmt);
+         if (lookup == null)
+            this.wrote (sql);
+         ProfilingEvents.endStatement (event, sql, rows, false);
+      }
+   }//end executePreparedAndReturnValues
+
+   // cache lookup for a read on this database, null if it is not cacheable
+   // or runs inside an explicit transaction
+   private QueryCache.Lookup cacheLookup (String sql, Object... params) {
+      if (!this._autoCommit)
+         return null;
+      return queryCache.lookup (this._url, sql, params);
+   }//end cacheLookup
+
+   // drops cached results of the tables a statement may have written
+   private void wrote (String sql) {
+      queryCache.invalidateStatement (sql);
+      if (!this._autoCommit)
+         this._written.add (sql);
+   }//end wrote
+
+   // a transaction ended: its writes are now visible to (or undone for) other sessions
+   private void transactionEnded () {
+      for (String sql : this._written)
+         queryCache.invalidateStatement (sql);
+      this._written.clear ();
+   }//end transactionEnded
+
+   /**
+    * Prepares a statement with the query timeout applied, registers it as
+    * running and binds the parameters; a String[] is bound as a text array.
+    */
+   private PreparedStatement prepareStatement (String sql, Object... params) throws SQLException {
+      int timeout = queryTimeout ();
+      PreparedStatement stmt = this.connection ().prepareStatement (sql);
+      stmt.setQueryTimeout (timeout);
+      this._running.add (stmt);
+      try{
+         for (int i = 0; i < params.length; ++i){
+            if (params[i] instanceof String[])
+               stmt.setArray (i + 1, this.connection ().createArrayOf ("text", (String[]) params[i]));
+            else
+               stmt.setObject (i + 1, params[i]);
+         }//end for
+      }catch (SQLException e){
+         this.closeStatement (stmt);
+         throw e;
+      }
+      return stmt;
+   }//end prepareStatement
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -207,14 +624,128 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	ProfilingEvents.StatementEvent event = ProfilingEvents.beginStatement ();
+	String query = String.format("Select currval('%s')", sequence);
+	Statement stmt = this.createStatement ();
+	try{
+		ResultSet rs = stmt.executeQuery (query);
+		if (rs.next())
+			return rs.getInt(1);
+		return -1;
+	}finally{
+		this.closeStatement (stmt);
+		ProfilingEvents.endStatement (event, query, 1, false);
+	}
    }
 
+   /**
+    * Sets the server side statement and lock timeouts for this session so a
+    * runaway query or a blocked lock wait cannot hold the connection forever.
+    *
+    * @throws java.sql.SQLException when the settings could not be applied
+    */
+   private void setSessionTimeouts() throws SQLException {
+      Statement stmt = this.connection ().createStatement ();
+      try{
+         stmt.execute (String.format("SET statement_timeout = %d", STATEMENT_TIMEOUT_MS));
+         stmt.execute (String.format("SET lock_timeout = %d", LOCK_TIMEOUT_MS));
+      }finally{
+         stmt.close ();
+      }
+   }//end setSessionTimeouts
+
+   /**
+    * Creates a statement with the client side query timeout applied and
+    * registers it as running so that cancel() can reach it.
+    *
+    * @return a new statement on the physical connection
+    * @throws java.sql.SQLException when the statement could not be created,
+    *         or the operation has no budget left for it
+    */
+   private Statement createStatement() throws SQLException {
+      int timeout = queryTimeout ();
+      Statement stmt = this.connection ().createStatement ();
+      stmt.setQueryTimeout (timeout);
+      this._running.add (stmt);
+      return stmt;
+   }//end createStatement
+
+   /**
+    * The query timeout (seconds) for the next statement: QUERY_TIMEOUT, cut
+    * to what is left of the budget of the operation the thread is running
+    * (see AdmissionControl.Budget).
+    *
+    * @throws java.sql.SQLException when the budget has already run out
+    */
+   private static int queryTimeout() throws SQLException {
+      AdmissionControl.Budget budget = AdmissionControl.currentBudget ();
+      if (budget == null)
+         return QUERY_TIMEOUT;
+      long remaining = budget.remainingMillis ();
+      if (remaining <= 0)
+         throw new SQLException ("The operation took too long, please try again", "57014");   // query_canceled
+      int seconds = (int) Math.min (Integer.MAX_VALUE, (remaining + 999) / 1000);
+      return QUERY_TIMEOUT > 0 ? Math.min (QUERY_TIMEOUT, seconds) : seconds;
+   }//end queryTimeout
+
+   /**
+    * Unregisters and closes a statement obtained from createStatement().
+    */
+   private void closeStatement(Statement stmt) throws SQLException {
+      this._running.remove (stmt);
+      stmt.close ();
+   }//end closeStatement
+
+   /**
+    * Cancels every statement that is currently executing on this connection.
+    * Safe to call from another thread; the cancelled call fails with an
+    * SQLException in the thread that issued it.
+    */
+   public void cancel(){
+      for (Statement stmt : this._running){
+         try{
+            stmt.cancel ();
+         }catch (SQLException e){
+            // ignored, the statement may have completed meanwhile.
+         }//end try
+      }//end for
+   }//end cancel
+
+   /**
+    * Starts or ends explicit transactions on this session. With auto commit
+    * off, updates are only made permanent by commit().
+    *
+    * @param autoCommit true to commit every statement on its own
+    * @throws java.sql.SQLException when the mode could not be changed
+    */
+   public void setAutoCommit(boolean autoCommit) throws SQLException {
+      this.connection ().setAutoCommit (autoCommit);
+      this._autoCommit = autoCommit;
+   }//end setAutoCommit
+
+   /**
+    * Makes the updates of the current transaction permanent.
+    *
+    * @throws java.sql.SQLException when the commit failed
+    */
+   public void commit() throws SQLException {
+      this.connection ().commit ();
+      this.transactionEnded ();
+   }//end commit
+
+   /**
+    * Discards the updates of the current transaction.
+    */
+   public void rollback(){
+      try{
+         if (this._connection != null)
+            this._connection.rollback ();
+      }catch (SQLException e){
+         // ignored, nothing left to undo.
+      }//end try
+      this.transactionEnded ();
+   }//end rollback
+
    /**
     * Method to close the physical connection if it is open.
     */
@@ -231,29 +762,76 @@ public class ProfNetwork {
    /**
     * The main execution method
     *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>,
+    *        optionally followed by a command or --script <file> (see CommandMode)
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             ProfNetwork.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<command> <args...> | --script <file>]");
          return;
       }//end if
 
-      Greeting();
+      boolean commandMode = args.length > 3;
+      // -Dprofnetwork.fastStart=true shows the menu before connecting and
+      // warms the caches up in the background
+      boolean fastStart = !commandMode && Boolean.getBoolean("profnetwork.fastStart");
+      boolean startupReport = !commandMode && (fastStart || Boolean.getBoolean("profnetwork.startupReport"));
+      final StartupTimer startup = new StartupTimer();
+      int exitStatus = 0;
+      if (!commandMode)
+         Greeting();
       ProfNetwork esql = null;
+      CacheListener listener = null;
       try{
+         long phase = startup.now();
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         Class.forName ("org.postgresql.Driver");
+         phase = startup.record("driver", phase);
          // instantiate the ProfNetwork object and creates a physical
-         // connection.
+         // connection, or in fast start mode one that connects on first use.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new ProfNetwork (dbname, dbport, user, "");
+         if (fastStart){
+            esql = lazy (dbname, dbport, user, "");
+         }else{
+            esql = new ProfNetwork (dbname, dbport, user, "");
+            phase = startup.record("connect", phase);
+         }//end if
+
+         // run the command(s) without menus
+         if (commandMode){
+            exitStatus = CommandMode.run(esql, Arrays.copyOfRange(args, 3, args.length));
+            return;
+         }//end if
+
+         // stop whatever is still running on the server when interrupted (Ctrl-C)
+         final ProfNetwork session = esql;
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() { session.cancel(); }
+         });
+
+         // follow writes made by other instances
+         listener = new CacheListener(esql);
+         activity.startSnapshots();
+         if (fastStart){
+            warmUp(esql, listener, startup, startupReport);
+         }else{
+            // map the connection graph snapshot in and catch up with the change log
+            getGraph(esql);
+            phase = startup.record("connection graph", phase);
+            directory = UserDirectory.load(esql);
+            phase = startup.record("user directory", phase);
+            listener.start();
+            phase = startup.record("cache listener", phase);
+         }//end if
+         startup.record("menu", phase);
+         if (startupReport && !fastStart)
+            startup.report(System.err);
 
          boolean keepon = true;
          while(keepon) {
@@ -264,17 +842,25 @@ public class ProfNetwork {
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
+            int choice = readChoice();
+            ProfilingEvents.OperationEvent op = ProfilingEvents.beginOperation(
+               choice == 1 ? "CreateUser" : choice == 2 ? "LogIn" : "LoginMenu", null);
+            try{
+               switch (choice){
+                  case 1: CreateUser(esql); break;
+                  case 2: authorisedUser = LogIn(esql); break;
+                  case 9: keepon = false; break;
+                  default : System.out.println("Unrecognized choice!"); break;
+               }//end switch
+            }finally{
+               ProfilingEvents.endOperation(op);
+            }//end try
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
+				printBadges(esql, authorisedUser);
                 System.out.println("1. Goto Friend List");
                 System.out.println("2. Update Profile");
                 System.out.println("3. Write a new message");
@@ -285,21 +871,30 @@ public class ProfNetwork {
 				System.out.println("8. Search People");
 				System.out.println("9. View Requests");
                 System.out.println("10. Log out");
-                switch (readChoice()){
-                   case 1: FriendList(esql); break;
-                   case 2: UpdateProfile(esql); break;
-                   case 3: NewMessage(esql); break;
-                   case 4: SendRequest(esql); break;
-				   case 5: ViewProfile(esql); break;
-				   case 6: ViewMessages(esql); break;
-				   case 7: ChangePassword(esql); break;
-				   case 8: SearchPeople(esql); break;
-				   case 9: ViewRequests(esql); break;
-                   case 10: 
-						usermenu = false;
-						loggedinUser = null;
-						break;
-                   default : System.out.println("Unrecognized choice!"); break;
+				System.out.println("11. People You May Know");
+                int action = readChoice();
+                ProfilingEvents.OperationEvent menuOp = ProfilingEvents.beginOperation(
+                   action >= 1 && action < MENU_OPERATIONS.length ? MENU_OPERATIONS[action] : "MainMenu", authorisedUser);
+                try{
+                   switch (action){
+                      case 1: FriendList(esql); break;
+                      case 2: UpdateProfile(esql); break;
+                      case 3: NewMessage(esql); break;
+                      case 4: SendRequest(esql); break;
+                      case 5: ViewProfile(esql); break;
+                      case 6: ViewMessages(esql); break;
+                      case 7: ChangePassword(esql); break;
+                      case 8: SearchPeople(esql); break;
+                      case 9: ViewRequests(esql); break;
+                      case 10:
+                         usermenu = false;
+                         loggedinUser = null;
+                         break;
+                      case 11: PeopleYouMayKnow(esql); break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                }finally{
+                   ProfilingEvents.endOperation(menuOp);
                 }
               }
             }
@@ -310,6 +905,9 @@ public class ProfNetwork {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               if(listener != null) listener.shutdown();
+               AsyncPool.shutdownAll();
+               saveGraph(esql);
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
@@ -318,8 +916,52 @@ public class ProfNetwork {
             // ignored.
          }//end try
       }//end try
+      if (exitStatus != 0)
+         System.exit(exitStatus);
    }//end main
 
+   /*
+    * Connects and loads the caches on a background thread so the menu is
+    * usable at once; the menus load whatever is still missing on demand.
+    * The cache scans run on a session of their own, so a login on the
+    * menu's session does not queue behind them.
+    **/
+   private static void warmUp(final ProfNetwork esql, final CacheListener listener, final StartupTimer startup, final boolean report){
+      Thread warmUp = new Thread("warm-up") {
+         public void run() {
+            long phase = startup.now();
+            ProfNetwork loader = null;
+            try{
+               esql.getConnection();
+               phase = startup.record("connect", phase);
+               loader = esql.openSession();
+               getGraph(loader);
+               phase = startup.record("connection graph", phase);
+               if (directory == null)
+                  directory = UserDirectory.load(loader);
+               startup.record("user directory", phase);
+            }catch (Exception e){
+               System.err.println("Warm-up failed: " + e.getMessage());
+            }finally{
+               if (loader != null)
+                  loader.cleanup();
+            }//end try
+            // keeps retrying on its own if the database is not reachable yet
+            listener.start();
+            if (report)
+               startup.report(System.err);
+         }
+      };
+      warmUp.setDaemon(true);
+      warmUp.start();
+   }//end warmUp
+
+   // main menu choices by number, as named in flight recordings
+   private static final String[] MENU_OPERATIONS = {
+      null, "FriendList", "UpdateProfile", "NewMessage", "SendRequest", "ViewProfile",
+      "ViewMessages", "ChangePassword", "SearchPeople", "ViewRequests", "LogOut", "PeopleYouMayKnow"
+   };
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -360,10 +1002,7 @@ public class ProfNetwork {
          System.out.print("\tEnter user email: ");
          String email = in.readLine();
 
-	 //Creating empty contact\block lists for a user
-	 String query = String.format("INSERT INTO USR (userId, password, email) VALUES ('%s','%s','%s')", login, password, email);
-
-         esql.executeUpdate(query);
+         createUser(esql, login, password, email);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -383,9 +1022,7 @@ public class ProfNetwork {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-		if (userNum > 0)
+		if (checkLogin(esql, login, password))
 			return login;
          return null;
       }catch(Exception e){
@@ -413,28 +1050,19 @@ public class ProfNetwork {
 						menu = 0;
 						break;
 					case 1:
-						String view_friends_query = String.format("SELECT * FROM CONNECTION_USR WHERE userId = '%s' AND status='Accept'", uid);
-						List<List<String>>userlist1 = esql.executeQueryAndReturnResult(view_friends_query);
-						
-						String view_friends_query2 = String.format("SELECT * FROM CONNECTION_USR WHERE connectionId = '%s' AND status='Accept'", uid);
-						List<List<String>>userlist2 = esql.executeQueryAndReturnResult(view_friends_query2);
+						List<String> friends = friendIds(esql, uid);
 						
 						// Checking if no friends
-						if((userlist1.size() == 0) && (userlist2.size()==0))
+						if(friends.size() == 0)
 						{
 							System.out.print(uid + "has no friend connections.");
 							return;
 						}
 						
 						System.out.print("\nUserId\t\n");
-						for(int row = 0; row < userlist1.size(); row++)
-						{
-							System.out.print("\t" + userlist1.get(row).get(1) + "\n");
-						}
-						
-						for(int row = 0; row < userlist2.size(); row++)
+						for(String friend : friends)
 						{
-							System.out.print("\t" + userlist2.get(row).get(0) + "\n");
+							System.out.print("\t" + friend + "\n");
 						}
 						
 						System.out.print("0. Go back to " + parent + "'s Friends List\n");
@@ -493,21 +1121,12 @@ public class ProfNetwork {
 						menu = 0;
 						break;
 					case 1:
-						String view_friends_query = String.format("SELECT * FROM CONNECTION_USR WHERE userId = '%s' AND status='Accept'", loggedinUser);
-						List<List<String>>userlist1 = esql.executeQueryAndReturnResult(view_friends_query);
-						
-						String view_friends_query2 = String.format("SELECT * FROM CONNECTION_USR WHERE connectionId = '%s' AND status='Accept'", loggedinUser);
-						List<List<String>>userlist2 = esql.executeQueryAndReturnResult(view_friends_query2);
+						List<String> friends = friendIds(esql, loggedinUser);
 						
 						System.out.print("\nUserId\t\n");
-						for(int row = 0; row < userlist1.size(); row++)
-						{
-							System.out.print("\t" + userlist1.get(row).get(1) + "\n");
-						}
-						
-						for(int row = 0; row < userlist2.size(); row++)
+						for(String friend : friends)
 						{
-							System.out.print("\t" + userlist2.get(row).get(0) + "\n");
+							System.out.print("\t" + friend + "\n");
 						}
 						
 						System.out.print("\n0. Go back to Menu\n");
@@ -547,6 +1166,20 @@ public class ProfNetwork {
 		}
 	} //end FriendList
 
+	// Profile fields in UpdateProfile menu order: name, table, column, prompt
+	private static final String[][] PROFILE_FIELDS = {
+		{"company", "WORK_EXPR", "company", "Company"},
+		{"role", "WORK_EXPR", "role", "Role"},
+		{"location", "WORK_EXPR", "location", "Location"},
+		{"work-start", "WORK_EXPR", "startDate", "Start Date (yyyy/mm/dd)"},
+		{"work-end", "WORK_EXPR", "endDate", "End Date (yyyy/mm/dd)"},
+		{"institution", "EDUCATIONAL_DETAILS", "institutionName", "Institution Name"},
+		{"major", "EDUCATIONAL_DETAILS", "major", "Major"},
+		{"degree", "EDUCATIONAL_DETAILS", "degree", "Degree"},
+		{"edu-start", "EDUCATIONAL_DETAILS", "startDate", "Start Year (yyyy-mm-dd)"},
+		{"edu-end", "EDUCATIONAL_DETAILS", "endDate", "End Year (yyyy-mm-dd)"}
+	};
+
 	public static void UpdateProfile(ProfNetwork esql)
 	{
 		try{
@@ -567,87 +1200,18 @@ public class ProfNetwork {
 			System.out.println("\t\t\t10. Update End Year");
 			
 			int choice = readChoice();
-			switch (choice)
+			if(choice == 0)
+				return;
+			if(choice < 1 || choice > PROFILE_FIELDS.length)
 			{
-				case 0:
-					break;
-				// WORK EXPERIENCE
-				case 1:
-					System.out.print("\tEnter Company: ");
-					String new_company = in.readLine();
-					
-					String comp_query = String.format("UPDATE WORK_EXPR SET company='%s' WHERE userId='%s'", new_company, loggedinUser);
-			        esql.executeUpdate(comp_query);
-					break;
-				case 2:
-					System.out.print("\tEnter Role: ");
-					String new_role = in.readLine();
-					
-					String role_query = String.format("UPDATE WORK_EXPR SET role='%s' WHERE userId='%s'", new_role, loggedinUser);
-			        esql.executeUpdate(role_query);
-					break;
-				case 3:
-					System.out.print("\tEnter Location: ");
-					String new_location = in.readLine();
-					
-					String loc_query = String.format("UPDATE WORK_EXPR SET location='%s' WHERE userId='%s'", new_location, loggedinUser);
-			        esql.executeUpdate(loc_query);
-					break;
-				case 4:
-					System.out.print("\tEnter Start Date (yyyy/mm/dd): ");
-					String new_start_date = in.readLine();
-					
-					String stdate_query = String.format("UPDATE WORK_EXPR SET startDate='%s' WHERE userId='%s'", new_start_date, loggedinUser);
-			        esql.executeUpdate(stdate_query);
-					break;
-				case 5:
-					System.out.print("\tEnter End Date (yyyy/mm/dd): ");
-					String new_end_date = in.readLine();
-					
-					String enddate_query = String.format("UPDATE WORK_EXPR SET endDate='%s' WHERE userId='%s'", new_end_date, loggedinUser);
-			        esql.executeUpdate(enddate_query);
-					break;
-					
-				// EDUCATIONAL DETAILS
-				case 6:
-					System.out.print("\tEnter Institution Name: ");
-					String new_institution = in.readLine();
-					
-					String inst_query = String.format("UPDATE EDUCATIONAL_DETAILS SET institutionName='%s' WHERE userId='%s'", new_institution, loggedinUser);
-			        esql.executeUpdate(inst_query);
-			        break;
-			    case 7:
-					System.out.print("\tEnter Major: ");
-					String new_major = in.readLine();
-					
-					String major_query = String.format("UPDATE EDUCATIONAL_DETAILSSET major='%s' WHERE userId='%s'", new_major, loggedinUser);
-			        esql.executeUpdate(major_query);
-			        break;
-			    case 8:
-					System.out.print("\tEnter Degree: ");
-					String new_degree = in.readLine();
-					
-					String degree_query = String.format("UPDATE EDUCATIONAL_DETAILS degree='%s' WHERE userId='%s'", new_degree, loggedinUser);
-			        esql.executeUpdate(degree_query);
-			        break;
-			    case 9:
-					System.out.print("\tEnter Start Year (yyyy-mm-dd): ");
-					String new_start_year = in.readLine();
-					
-					String start_query = String.format("UPDATE EDUCATIONAL_DETAILS startDate='%s' WHERE userId='%s'", new_start_year, loggedinUser);
-			        esql.executeUpdate(start_query);
-			        break;
-			    case 10:
-					System.out.print("\tEnter End Year (yyyy-mm-dd): ");
-					String new_end_year = in.readLine();
-					
-					String end_query = String.format("UPDATE EDUCATIONAL_DETAILS SET endDate='%s' WHERE userId = '%s'", new_end_year, loggedinUser);
-			        esql.executeUpdate(end_query);
-					break;
-				default: 
-					System.out.println("Unrecognized choice!"); 
-					break;
+				System.out.println("Unrecognized choice!");
+				return;
 			}
+
+			String[] field = PROFILE_FIELDS[choice - 1];
+			System.out.print("\tEnter " + field[3] + ": ");
+			String new_value = in.readLine();
+			updateProfileField(esql, loggedinUser, field[0], new_value);
 		}
 		catch(Exception e){
 			System.err.println(e.getMessage());
@@ -657,15 +1221,23 @@ public class ProfNetwork {
 	public static void NewMessage(ProfNetwork esql)
 	{
 		try{
-			System.out.print("Enter user to send message to ('q' to quit): ");
+			System.out.print("Enter user to send message to ('*' for all your connections, 'q' to quit): ");
 			String receiver = in.readLine();
 			if(receiver.equals("q"))
 				return;
 
+			if(receiver.equals("*"))
+			{
+				System.out.print("\tEnter message for all your connections ('q' to quit): ");
+				String announcement = in.readLine();
+				if(announcement.equals("q")) return;
+				List<String> sent = broadcastMessage(esql, loggedinUser, announcement);
+				System.out.print("Message sent to " + sent.size() + " connection(s)\n");
+				return;
+			}
+
 			//Check whether or not the username the user has entered is valid..
-			String validquery = String.format("SELECT userId FROM USR WHERE userId = '%s'", receiver);
-			int validqueryvalue = esql.executeQuery(validquery);
-			if(validqueryvalue < 1)
+			if(!userExists(esql, receiver))
 			{
 				System.out.print("\nThat's an invalid user!\nExit function:NewMessage\n");
 				return;
@@ -675,22 +1247,7 @@ public class ProfNetwork {
 			String new_mssg = in.readLine();
 			if(new_mssg.equals("q")) return;
 			
-			String messageidquery = String.format("SELECT msgId FROM MESSAGE");
-			List<List<String>> queryvalue = esql.executeQueryAndReturnResult(messageidquery);
-			int nextid = queryvalue.size() + 1; 	// To get the next mssg id based off max mssg id (kinda)
-			
-			// DEBUG STUFF
-			/*System.out.format("The value of msg id is: %d%n", nextid);
-			System.out.format("The value of sender id is: %s%n", loggedinUser);
-			System.out.format("The value of receiverId is: %s%n", receiver);
-			System.out.format("Contents: %s%n", new_mssg);*/
-			
-			int deletestats = 0;
-			String mssg_status = new String("Delivered");
-			String mssg_timestamp = new Timestamp(new Date().getTime()).toString();
-			
-			String insertmessage = String.format("INSERT INTO MESSAGE(msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) VALUES('%d', '%s', '%s', '%s', '%s', '%d', '%s')", nextid, loggedinUser, receiver, new_mssg, mssg_timestamp, deletestats, mssg_status);
-			esql.executeUpdate(insertmessage);				
+			sendMessage(esql, loggedinUser, receiver, new_mssg);
 		}
 		catch(Exception e){
 			System.err.println(e.getMessage());
@@ -698,11 +1255,15 @@ public class ProfNetwork {
 	} //end NewMessage
 
 
-	// Checks if person who gets requested is at most level 3 connections
-	public static void checkSendRequest(ProfNetwork esql, String input, String user, int level)
+	// Checks if person who gets requested is at most level 3 connections of requester
+	public static void checkSendRequest(ProfNetwork esql, String requester, String input, String user, int level)
 	{
+		AdmissionControl.Ticket ticket = null;
 		try
 		{
+			// the whole search counts as one expensive operation
+			if(level == 0)
+				ticket = admission.admit(requester, AdmissionControl.Cost.EXPENSIVE);
 			if(level >= 3)
 			{
 				System.out.print("User is not at most level 3 connections.\n");
@@ -717,14 +1278,12 @@ public class ProfNetwork {
 				user = levels.get(i).get(0);
 				if(user.equals(input))	// Found request user
 				{
-					String addquery = String.format("INSERT INTO CONNECTION_USR(userId, connectionId, status) VALUES('%s', '%s', '%s')", loggedinUser, input, "Accept");
-					esql.executeUpdate(addquery);
-					System.out.print("\nConnection added!\n");
+					printAddConnection(addConnection(esql, requester, input));
 					return;
 				}
 				else
 				{
-					checkSendRequest(esql, input, user, level + 1);
+					checkSendRequest(esql, requester, input, user, level + 1);
 				}
 			}
 			System.out.print("User is not at most level 3 connections.\n");
@@ -733,6 +1292,10 @@ public class ProfNetwork {
 		catch(Exception e){
 			System.err.println(e.getMessage());
 		}
+		finally{
+			if(ticket != null)
+				ticket.release();
+		}
 	}
 	
 	public static void SendRequest(ProfNetwork esql)
@@ -764,12 +1327,7 @@ public class ProfNetwork {
 						return;
 					}
 					
-					String inputquery = String.format("SELECT userId FROM USR WHERE userId = '%s'", input);
-					
-					int numRows = esql.executeQueryAndPrintResult(inputquery);
-					//System.out.printf("Numrows: %s%n", numRows); // debug
-					
-					if(numRows == 0)
+					if(!userExists(esql, input))
 					{
 						System.out.print("\nThis user doesn't exist!\n");
 						break;
@@ -780,9 +1338,10 @@ public class ProfNetwork {
 						String addchoice = in.readLine();
 						if(addchoice.equals("y") || addchoice.equals("yes"))
 						{
-							String addquery = String.format("INSERT INTO CONNECTION_USR(userId, connectionId, status) VALUES('%s', '%s', '%s')", input, loggedinUser, "Request");
-							esql.executeUpdate(addquery);
-							System.out.print("Connection Requested!\n");
+							if(requestConnection(esql, loggedinUser, input))
+								System.out.print("Connection Requested!\n");
+							else
+								System.out.print("A request or connection with this user already exists.\n");
 						}
 					}
 				}
@@ -803,11 +1362,7 @@ public class ProfNetwork {
 						System.out.print("Can't send connection to yourself.\n");
 						return;
 					}
-					String inputquery = String.format("SELECT userId FROM USR WHERE userId = '%s'", input);
-					
-					int numRows = esql.executeQuery(inputquery);
-					//System.out.printf("Numrows: %s%n", numRows); // Debug
-					if(numRows == 0)
+					if(!userExists(esql, input))
 					{
 						System.out.print("This user doesn't exist!\n");
 						return;
@@ -833,14 +1388,12 @@ public class ProfNetwork {
 								if(curr_user.equals(input))	// Found request user
 								{
 									//found = 1;
-									String addquery = String.format("INSERT INTO CONNECTION_USR(userId, connectionId, status) VALUES('%s', '%s', '%s')", loggedinUser, input, "Accept");
-									esql.executeUpdate(addquery);
-									System.out.print("\nConnection added!\n");
+									printAddConnection(addConnection(esql, loggedinUser, input));
 									return;
 								}
 								else
 								{
-									checkSendRequest(esql, input, curr_user, 0);
+									checkSendRequest(esql, loggedinUser, input, curr_user, 0);
 								}
 						}
 					}
@@ -855,65 +1408,73 @@ public class ProfNetwork {
 	{
 		try
 		{
-			//System.out.print("made it\n");
-			String uid_query = String.format("SELECT status FROM CONNECTION_USR WHERE userId='%s' AND connectionId='%s'", loggedinUser, uid);
-			List<List<String>> x = esql.executeQueryAndReturnResult(uid_query);
-			
-			//System.out.println(x.size());
-			int friend_bool = 0;
-			//System.out.print("SJEFIWEFJ\n");
-			
-			if(x.size() > 0)
+			if(!userExists(esql, uid))
 			{
-				String stat = x.get(0).get(0);
-				if(stat.equals("Accept")) friend_bool = 1;
-				friend_bool = 1;
+				System.out.print("\nNo such user: " + uid + "\n");
+				return;
 			}
-			
+
+			// name, date of birth, connection status, work and education in one query
+			Profile p = Profile.fetch(esql, loggedinUser, uid);
+			if(p == null)
+			{
+				System.out.print("\nNo such user: " + uid + "\n");
+				return;
+			}
+			activity.record(ActivityStats.Stream.PROFILES, uid);
 			
 			String profile = "\n" + uid + "'s Profile\n";
 			System.out.print(profile);
-			
-			// Get fullname
-			String get_query = String.format("SELECT name, dateOfBirth FROM USR WHERE userId='%s'", uid);
-			List<List<String>> y = esql.executeQueryAndReturnResult(get_query);
-			
-			String fullname = y.get(0).get(0); 	// getting name of person
-			String date = y.get(0).get(1);		// get date of birth
-				
-			System.out.print("Name: " + fullname + "\n");
-			if(friend_bool == 1) 	// If they are connections, view DOB
+			System.out.print("Name: " + p.name + "\n");
+			List<String> path = degreeOfSeparation(esql, loggedinUser, uid);
+			if(path != null && path.size() > 1)
+			{
+				System.out.print("Connection: " + degreeBadge(path.size() - 1));
+				if(path.size() > 2)
+					System.out.print(" (via " + String.join(" -> ", path.subList(1, path.size() - 1)) + ")");
+				System.out.print("\n");
+			}
+			if(p.connected()) 	// If they are connections, view DOB
 			{
 				System.out.print("Date of Birth: ");
-				System.out.print(date + "\n");
+				System.out.print(p.dateOfBirth + "\n");
 			}
 			
 			// WORK EXPERIENCE
 			System.out.print("\nWork Experience:\n");
-			String get_workex_query = String.format("SELECT * FROM WORK_EXPR WHERE userId='%s'", uid);
-			
-			int workNum = esql.executeQueryAndPrintResult(get_workex_query);
-			//System.out.print("\n");
-			if(workNum < 1)
+			if(p.work.length < 1)
 				System.out.print("No such Work Experience\n");
+			else
+				printProfileRows("company\trole\tlocation\tstartdate\tenddate", p.work);
 			
 			// EDUCATIONAL DETAILS
 			System.out.print("\nEducational Details:\n");
-			String get_edudet_query = String.format("SELECT * FROM EDUCATIONAL_DETAILS WHERE userId='%s'", uid);
-			
-			int eduNum = esql.executeQueryAndPrintResult(get_edudet_query);
+			if(p.education.length < 1)
+				System.out.print("\nNo such Educational Details");
+			else
+				printProfileRows("institutionname\tmajor\tdegree\tstartdate\tenddate", p.education);
 			System.out.print("\n");
-			if(eduNum < 1)
-				System.out.print("No such Educational Details");
 		}
 		catch(Exception e){
 			System.err.println(e.getMessage());
 		}
 	} // end viewProfileHelper
 
-	public static void ViewProfile(ProfNetwork esql)
+	// Prints profile rows under a header, tab separated
+	private static void printProfileRows(String header, String[][] rows)
 	{
-		try
+		System.out.println(header + "\t");
+		for(String[] row : rows)
+		{
+			for(String col : row)
+				System.out.print(col + "\t");
+			System.out.println();
+		}
+	}
+
+	public static void ViewProfile(ProfNetwork esql)
+	{
+		try
 		{		
 			String x = "\n" + loggedinUser + "'s Profile:\n";
 			System.out.print(x);
@@ -982,8 +1543,19 @@ public class ProfNetwork {
 						else
 							new_deletestatus = 3;
 					}	
-					String delete_query = String.format("UPDATE MESSAGE SET deleteStatus='%s' WHERE msgId='%s'", new_deletestatus, mssgid);
-					esql.executeUpdate(delete_query);
+					// the old status tells whether the receiver still counted it as unread
+					String delete_query = String.format(
+						"WITH old AS (SELECT msgId, deleteStatus FROM MESSAGE WHERE msgId='%s' FOR UPDATE) " +
+						"UPDATE MESSAGE m SET deleteStatus='%s' FROM old WHERE m.msgId = old.msgId " +
+						"RETURNING m.receiverId, m.status, old.deleteStatus", mssgid, new_deletestatus);
+					for(List<String> row : esql.executePreparedAndReturnResult(delete_query))
+					{
+						String before = row.get(2).trim();
+						boolean wasCounted = !before.equals("1") && !before.equals("3");
+						boolean counted = new_deletestatus != 1 && new_deletestatus != 3;
+						if(row.get(1).trim().equals("Delivered") && wasCounted && !counted)
+							counters.messagesRead(row.get(0).trim(), 1);
+					}
 					break;
 				default:
 					System.out.println("Unrecognized choice!"); 
@@ -1004,6 +1576,7 @@ public class ProfNetwork {
 			System.out.print("0. Go back to Menu\n");
 			System.out.print("1. View Sent Messages\n");
 			System.out.print("2. View Received Messages\n");
+			System.out.print("3. View Conversation\n");
 			System.out.print("\n");
 			
 			int choice = readChoice();
@@ -1012,8 +1585,7 @@ public class ProfNetwork {
 				case 0:
 					break;
 				case 1:			// User is sender
-					String sent_query = String.format("SELECT * FROM MESSAGE WHERE senderId='%s'", loggedinUser);
-					List <List<String>> sent_mssgs = esql.executeQueryAndReturnResult(sent_query);
+					List <List<String>> sent_mssgs = sentMessages(esql, loggedinUser);
 					
 					int sent_size = sent_mssgs.size();
 					System.out.print("Messages Sent: \n");
@@ -1057,8 +1629,7 @@ public class ProfNetwork {
 					deleteMenu(esql, "sender", delete_value1);
 					break;
 				case 2:		// User is receiver
-					String receive_query = String.format("SELECT * FROM MESSAGE WHERE receiverId='%s'", loggedinUser);
-					List <List<String>> received_mssgs = esql.executeQueryAndReturnResult(receive_query);
+					List <List<String>> received_mssgs = receivedMessages(esql, loggedinUser);
 					
 					int size = received_mssgs.size();
 					System.out.print("Messages: \n");
@@ -1098,8 +1669,12 @@ public class ProfNetwork {
 						//System.out.print("\n");
 					}
 					System.out.print("\n");
+					markRead(esql, String.format("receiverId='%s'", loggedinUser));
 					deleteMenu(esql, "receiver", delete_value2);
 					break;
+				case 3:
+					ViewConversation(esql);
+					break;
 				default:
 					System.out.println("Unrecognized choice!"); 
 					break;
@@ -1122,6 +1697,118 @@ public class ProfNetwork {
 		}
 	} //end ViewMessages
 
+	// Marks the logged in user's delivered messages matching the condition as Read;
+	// messages the receiver deleted are not counted as unread, so are left alone
+	private static void markRead(ProfNetwork esql, String condition) throws SQLException
+	{
+		String read_query = String.format("UPDATE MESSAGE SET status='Read' WHERE %s AND status='Delivered' AND deleteStatus NOT IN ('1', '3')", condition);
+		counters.messagesRead(loggedinUser, esql.executeUpdate(read_query));
+	}
+
+	// Prints the unread message and pending request counts under the menu title
+	private static void printBadges(ProfNetwork esql, String user)
+	{
+		try{
+			counters.reconcileIfStale(esql, user);
+		}
+		catch(SQLException e){
+			// show the last known counts
+		}
+		long unread = counters.unread(user);
+		long pending = counters.pending(user);
+		if(unread > 0 || pending > 0)
+			System.out.println("(" + unread + " unread messages, " + pending + " pending requests)");
+	}
+
+	// messages shown per page of a conversation
+	private static final int CONVERSATION_PAGE_SIZE = 10;
+
+	/*
+	 * Returns the next page of messages exchanged between two users, oldest
+	 * first, skipping messages user has deleted. Paging is by keyset: pass the
+	 * sendTime and msgId of the last message seen, or nulls for the first page.
+	 * Served by message_conversation_idx (sql/indexes.sql) as one range scan.
+	 * @return rows of msgId, senderId, contents, sendTime
+	 **/
+	public static List<List<String>> conversationPage(ProfNetwork esql, String user, String other, String afterTime, String afterId, int limit) throws SQLException
+	{
+		String after = "";
+		if(afterTime != null)
+			after = String.format(" AND (sendTime, msgId) > ('%s', '%s')", afterTime, afterId);
+		String query = String.format(
+			"SELECT msgId, senderId, contents, sendTime FROM MESSAGE " +
+			"WHERE least(senderId, receiverId) = least('%s', '%s') AND greatest(senderId, receiverId) = greatest('%s', '%s')%s " +
+			"AND NOT ((senderId = '%s' AND deleteStatus IN ('2', '3')) OR (receiverId = '%s' AND deleteStatus IN ('1', '3'))) " +
+			"ORDER BY sendTime, msgId LIMIT %d",
+			user, other, user, other, after, user, user, limit);
+		List<List<String>> page = esql.executeQueryAndReturnResult(query);
+
+		// archived messages of the conversation past the same keyset
+		List<List<String>> archived = new ArrayList<List<String>>();
+		for(List<String> m : archivedConversation(user, other))
+		{
+			String deleted = m.get(5).trim();
+			if(m.get(1).equals(user.trim()) ? deleted.equals("2") || deleted.equals("3") : deleted.equals("1") || deleted.equals("3"))
+				continue;
+			List<String> row = Arrays.asList(m.get(0), m.get(1), m.get(3), m.get(4));
+			if(afterTime == null || BY_SEND_TIME.compare(row, Arrays.asList(afterId, null, null, afterTime)) > 0)
+				archived.add(row);
+			if(archived.size() == limit)
+				break;
+		}
+		if(archived.isEmpty())
+			return page;
+		page = mergeArchived(page, archived, 3);
+		Collections.sort(page, BY_SEND_TIME);
+		return page.size() > limit ? new ArrayList<List<String>>(page.subList(0, limit)) : page;
+	}
+
+	// conversation rows (msgId, senderId, contents, sendTime) by sendTime, then msgId
+	private static final Comparator<List<String>> BY_SEND_TIME = new Comparator<List<String>>(){
+		public int compare(List<String> a, List<String> b){
+			int c = a.get(3).compareTo(b.get(3));
+			return c != 0 ? c : Long.compare(Long.parseLong(a.get(0).trim()), Long.parseLong(b.get(0).trim()));
+		}
+	};
+
+	// Back-and-forth with one person, a page at a time
+	public static void ViewConversation(ProfNetwork esql)
+	{
+		try{
+			System.out.print("Enter userId of the other person: ");
+			String other = in.readLine();
+
+			String afterTime = null;
+			String afterId = null;
+			System.out.print("\nConversation with " + other + "\n");
+			System.out.print("\nMessage ID\tFrom\t\tContents\t\t\tSend Time\n");
+			while(true)
+			{
+				List<List<String>> page = conversationPage(esql, loggedinUser, other, afterTime, afterId, CONVERSATION_PAGE_SIZE);
+				for(List<String> row : page)
+					System.out.print(row.get(0) + " " + row.get(1) + " " + row.get(2) + " " + row.get(3) + "\n");
+				if(afterTime == null)
+					markRead(esql, String.format("receiverId='%s' AND senderId='%s'", loggedinUser, other));
+				if(page.size() < CONVERSATION_PAGE_SIZE)
+				{
+					System.out.print("-- end of conversation --\n");
+					return;
+				}
+
+				List<String> last = page.get(page.size() - 1);
+				afterId = last.get(0);
+				afterTime = last.get(3);
+				System.out.print("Show more? (y/n): ");
+				String more = in.readLine();
+				if(!more.equals("y") && !more.equals("yes"))
+					return;
+			}
+		}
+		catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	} //end ViewConversation
+
 	public static void ChangePassword(ProfNetwork esql)
 	{
 		try{
@@ -1129,8 +1816,7 @@ public class ProfNetwork {
 			String newPassword = in.readLine();
 			if(newPassword.equals("q")) 
 				return;
-			String query = String.format("UPDATE USR SET password='%s' WHERE userId='%s'", newPassword, loggedinUser);
-			esql.executeUpdate(query);
+			changePassword(esql, loggedinUser, newPassword);
 		}
 		catch(Exception e){
 			System.err.println(e.getMessage());
@@ -1141,17 +1827,27 @@ public class ProfNetwork {
 	public static void SearchPeople(ProfNetwork esql)
 	{
 		try{
+			System.out.print("Search by\n");
+			System.out.print("1. Name\n");
+			System.out.print("2. Company, role, location, institution, major or degree\n");
+			if(readChoice() == 2)
+			{
+				SearchProfiles(esql);
+				return;
+			}
 			System.out.print("\tEnter person to search ('q' to quit): ");
 			String person = in.readLine();
 			if(person.equals("q")) return;
 			
-			String query = String.format("SELECT name, userId, email FROM USR WHERE name='%s'", person);
-			int searchNum = esql.executeQueryAndPrintResult(query);
-			if(searchNum < 1)
+			List<List<String>> people = searchPeople(esql, loggedinUser, person);
+			if(people.size() < 1)
 			{
 				System.out.print("No User, " + person + " exists.\n");
 				return;
 			}
+			System.out.print("name\tuserid\temail\t\n");
+			for(List<String> row : people)
+				System.out.print(row.get(0) + "\t" + row.get(1) + "\t" + row.get(2) + "\t\n");
 			
 			System.out.print("\n");
 			// Option to send friend request
@@ -1220,20 +1916,16 @@ public class ProfNetwork {
 					}
 					break;
 				case 2:
-					System.out.print("Enter Connection Id to accept: ");
-					String accept_id = in.readLine();
+					System.out.print("Enter Connection Id(s) to accept, comma separated ('*' for all): ");
+					String accept_ids = in.readLine();
 					
-					String accept_query = String.format("UPDATE CONNECTION_USR SET status='Accept' WHERE userId='%s' AND connectionId='%s' AND status='Request'", loggedinUser, accept_id);
-					esql.executeUpdate(accept_query);
-					System.out.print("\nRequest Accepted!\n");
+					answerRequestsMenu(esql, accept_ids, "Accept", "Accepted");
 					break;
 				case 3:
-					System.out.print("Enter Connection Id to reject: ");
-					String reject_id = in.readLine();
+					System.out.print("Enter Connection Id(s) to reject, comma separated ('*' for all): ");
+					String reject_ids = in.readLine();
 					
-					String reject_query = String.format("UPDATE CONNECTION_USR SET status='Reject' WHERE userId='%s' AND connectionId='%s' AND status='Request'", loggedinUser, reject_id);
-					esql.executeUpdate(reject_query);
-					System.out.print("\nRequest Rejected!\n");
+					answerRequestsMenu(esql, reject_ids, "Reject", "Rejected");
 					break;
 				default:
 					System.out.println("Unrecognized choice!"); 
@@ -1246,4 +1938,712 @@ public class ProfNetwork {
 		}
 	} //end ViewRequests
 
+	// Answers the requests listed by the user (comma separated, or * for all) and prints each outcome
+	private static void answerRequestsMenu(ProfNetwork esql, String input, String status, String done) throws SQLException
+	{
+		if(input.trim().equals("*"))
+		{
+			List<String> answered = answerAllRequests(esql, loggedinUser, "%", status);
+			for(String id : answered)
+				System.out.print("\n" + id + ": Request " + done + "!");
+			System.out.print("\n" + answered.size() + " request(s) " + done.toLowerCase() + "\n");
+			return;
+		}
+
+		List<String> ids = new ArrayList<String>();
+		for(String id : input.split(","))
+			if(id.trim().length() > 0)
+				ids.add(id.trim());
+		Map<String, Boolean> outcome = answerRequests(esql, loggedinUser, ids.toArray(new String[0]), status);
+		for(Map.Entry<String, Boolean> e : outcome.entrySet())
+		{
+			if(e.getValue())
+				System.out.print("\n" + e.getKey() + ": Request " + done + "!");
+			else
+				System.out.print("\n" + e.getKey() + ": No pending request");
+		}
+		System.out.print("\n");
+	}
+
+	/*
+	 * Non-interactive operations. The menus above prompt for input and call
+	 * these; the load generator drives them directly.
+	 **/
+
+	// Registers a new user
+	public static void createUser(ProfNetwork esql, String login, String password, String email) throws SQLException
+	{
+		//Creating empty contact\block lists for a user
+		String query = String.format("INSERT INTO USR (userId, password, email) VALUES ('%s','%s','%s')", login, password, email);
+		esql.executeUpdate(query);
+		UserDirectory dir = directory;
+		if(dir != null)
+			dir.add(login);
+	}
+
+	// @return true if a user with this userId exists. The directory only
+	// answers positives; users it does not know, such as ones created by
+	// another instance, are looked up in USR
+	public static boolean userExists(ProfNetwork esql, String uid) throws SQLException
+	{
+		UserDirectory dir = directory;
+		if(dir == null)
+			directory = dir = UserDirectory.load(esql);
+		if(dir.exists(uid))
+			return true;
+		String query = String.format("SELECT 1 FROM USR WHERE userId='%s'", uid);
+		if(esql.executeQuery(query) == 0)
+			return false;
+		dir.add(uid);
+		return true;
+	}
+
+	// Replaces a user's password
+	public static void changePassword(ProfNetwork esql, String uid, String password) throws SQLException
+	{
+		String query = String.format("UPDATE USR SET password='%s' WHERE userId='%s'", password, uid);
+		esql.executeUpdate(query);
+	}
+
+	/*
+	 * Sets one profile field (see PROFILE_FIELDS for names) for a user
+	 * @throws IllegalArgumentException for an unknown field name
+	 **/
+	public static void updateProfileField(ProfNetwork esql, String uid, String name, String value) throws SQLException
+	{
+		for(String[] field : PROFILE_FIELDS)
+		{
+			if(!field[0].equals(name))
+				continue;
+			String query = String.format("UPDATE %s SET %s='%s' WHERE userId='%s'", field[1], field[2], value, uid);
+			esql.executeUpdate(query);
+			// company and institution feed the connection suggestions
+			if(recommendations != null && (name.equals("company") || name.equals("institution")))
+				recommendations.reloadProfile(esql, uid);
+			ProfileIndex index = profileIndex;
+			if(index != null)
+				index.reloadUser(esql, uid);
+			return;
+		}
+		throw new IllegalArgumentException("Unknown profile field: " + name);
+	}
+
+	// Accepts the pending request from connection to uid; @return false if there was none
+	public static boolean acceptRequest(ProfNetwork esql, String uid, String connection) throws SQLException
+	{
+		return answerRequests(esql, uid, new String[] { connection }, "Accept").get(connection.trim());
+	}
+
+	// Rejects the pending request from connection to uid; @return false if there was none
+	public static boolean rejectRequest(ProfNetwork esql, String uid, String connection) throws SQLException
+	{
+		return answerRequests(esql, uid, new String[] { connection }, "Reject").get(connection.trim());
+	}
+
+	/*
+	 * Accepts or rejects (status "Accept" or "Reject") the pending requests
+	 * from several connections to uid with a single UPDATE.
+	 * @return connectionId -> true if it was pending and is now answered,
+	 *         false if there was no pending request from it
+	 **/
+	public static Map<String, Boolean> answerRequests(ProfNetwork esql, String uid, String[] connections, String status) throws SQLException
+	{
+		connections = connections.clone();
+		for(int i = 0; i < connections.length; i++)
+			connections[i] = connections[i].trim();
+		List<List<String>> answered = esql.executePreparedAndReturnResult(
+			"UPDATE CONNECTION_USR SET status=? WHERE userId=? AND status='Request' AND connectionId = ANY(?) RETURNING connectionId",
+			status, uid, connections);
+
+		Map<String, Boolean> outcome = new LinkedHashMap<String, Boolean>();
+		for(String connection : connections)
+			outcome.put(connection, false);
+		for(List<String> row : answered)
+			outcome.put(row.get(0).trim(), true);
+		requestsAnswered(uid, answered, status);
+		return outcome;
+	}
+
+	/*
+	 * Accepts or rejects every pending request to uid whose connectionId
+	 * matches a LIKE pattern ("%" for all of them) with a single UPDATE.
+	 * @return the connectionIds that were answered
+	 **/
+	public static List<String> answerAllRequests(ProfNetwork esql, String uid, String pattern, String status) throws SQLException
+	{
+		List<List<String>> answered = esql.executePreparedAndReturnResult(
+			"UPDATE CONNECTION_USR SET status=? WHERE userId=? AND status='Request' AND connectionId LIKE ? RETURNING connectionId",
+			status, uid, pattern);
+
+		List<String> ids = new ArrayList<String>();
+		for(List<String> row : answered)
+			ids.add(row.get(0).trim());
+		requestsAnswered(uid, answered, status);
+		return ids;
+	}
+
+	// Updates counters and the connection graph after requests were answered
+	private static void requestsAnswered(String uid, List<List<String>> answered, String status)
+	{
+		counters.requestsAnswered(uid, answered.size());
+		if(status.equals("Accept"))
+			for(List<String> row : answered)
+				connectionAccepted(uid, row.get(0).trim());
+	}
+
+	// @return true if the userId/password pair exists
+	public static boolean checkLogin(ProfNetwork esql, String login, String password) throws SQLException
+	{
+		String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
+		return esql.executeQuery(query) > 0;
+	}
+
+	// @return the userIds of everyone with an accepted connection to uid
+	public static List<String> friendIds(ProfNetwork esql, String uid) throws SQLException
+	{
+		AdmissionControl.Ticket ticket = admission.admit(uid, AdmissionControl.Cost.NORMAL);
+		try{
+			return queryFriendIds(esql, uid);
+		}
+		finally{
+			ticket.release();
+		}
+	}
+
+	// friendIds without admission, for callers that admitted the whole
+	// operation once (ShardRouter runs it on every shard)
+	static List<String> queryFriendIds(ProfNetwork esql, String uid) throws SQLException
+	{
+		String view_friends_query = String.format("SELECT connectionId FROM CONNECTION_USR WHERE userId = '%s' AND status='Accept'", uid);
+		String view_friends_query2 = String.format("SELECT userId FROM CONNECTION_USR WHERE connectionId = '%s' AND status='Accept'", uid);
+
+		// both directions at once: one on a pooled session, one on ours
+		CompletableFuture<List<List<String>>> outgoing = esql.executeQueryAndReturnResultAsync(view_friends_query);
+		List<List<String>> incoming = esql.executeQueryAndReturnResultHedged(view_friends_query2);
+
+		List<String> friends = new ArrayList<String>();
+		for(List<String> row : AsyncPool.await(outgoing))
+			friends.add(row.get(0));
+		for(List<String> row : incoming)
+			friends.add(row.get(0));
+		return friends;
+	}
+
+	// Stores a new message from sender to receiver with the next free msgId.
+	// MESSAGE is locked as in broadcastMessage, so two senders cannot take
+	// the same max + 1; if no transaction is open, one is used for the insert
+	public static void sendMessage(ProfNetwork esql, String sender, String receiver, String contents) throws SQLException
+	{
+		AdmissionControl.Ticket ticket = admission.admit(sender, AdmissionControl.Cost.CHEAP);
+		boolean ownTransaction = esql._autoCommit;
+		try{
+			if(ownTransaction)
+				esql.setAutoCommit(false);
+			esql.executeUpdate("LOCK TABLE MESSAGE IN SHARE ROW EXCLUSIVE MODE");
+
+			int deletestats = 0;
+			String mssg_status = "Delivered";
+			String mssg_timestamp = new Timestamp(new Date().getTime()).toString();
+
+			// next mssg id is max + 1, looked up in the same statement as the insert
+			String insertmessage = String.format("INSERT INTO MESSAGE(msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) SELECT COALESCE(MAX(msgId), 0) + 1, '%s', '%s', '%s', '%s', '%d', '%s' FROM MESSAGE", sender, receiver, contents, mssg_timestamp, deletestats, mssg_status);
+			esql.executeUpdate(insertmessage);
+
+			if(ownTransaction)
+				esql.commit();
+			counters.messageDelivered(receiver);
+			activity.record(ActivityStats.Stream.SENDERS, sender);
+		}
+		catch(SQLException e){
+			if(ownTransaction)
+				esql.rollback();
+			throw e;
+		}
+		finally{
+			ticket.release();
+			if(ownTransaction)
+				esql.setAutoCommit(true);
+		}
+	}
+
+	/*
+	 * Sends the same message from sender to every accepted connection with one
+	 * INSERT ... SELECT, numbering the rows from a block of msgIds above the
+	 * current maximum. MESSAGE is locked against other writers until the
+	 * transaction ends, so the block cannot be taken twice; if no transaction
+	 * is open, one is used for just this message.
+	 * @return the receivers
+	 **/
+	public static List<String> broadcastMessage(ProfNetwork esql, String sender, String contents) throws SQLException
+	{
+		AdmissionControl.Ticket ticket = admission.admit(sender, AdmissionControl.Cost.EXPENSIVE);
+		boolean ownTransaction = esql._autoCommit;
+		try{
+			if(ownTransaction)
+				esql.setAutoCommit(false);
+			esql.executeUpdate("LOCK TABLE MESSAGE IN SHARE ROW EXCLUSIVE MODE");
+
+			String mssg_timestamp = new Timestamp(new Date().getTime()).toString();
+			String broadcast = String.format(
+				"INSERT INTO MESSAGE(msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) " +
+				"SELECT m.base + row_number() OVER (ORDER BY f.receiver), '%s', f.receiver, '%s', '%s', '0', 'Delivered' " +
+				"FROM (SELECT connectionId AS receiver FROM CONNECTION_USR WHERE userId = '%s' AND status = 'Accept' " +
+				"      UNION SELECT userId FROM CONNECTION_USR WHERE connectionId = '%s' AND status = 'Accept') f, " +
+				"     (SELECT COALESCE(MAX(msgId), 0) AS base FROM MESSAGE) m " +
+				"RETURNING receiverId",
+				sender, contents, mssg_timestamp, sender, sender);
+			List<String> receivers = new ArrayList<String>();
+			for(List<String> row : esql.executePreparedAndReturnResult(broadcast))
+				receivers.add(row.get(0).trim());
+
+			if(ownTransaction)
+				esql.commit();
+			for(String receiver : receivers)
+				counters.messageDelivered(receiver);
+			activity.record(ActivityStats.Stream.SENDERS, sender, receivers.size());
+			return receivers;
+		}
+		catch(SQLException e){
+			if(ownTransaction)
+				esql.rollback();
+			throw e;
+		}
+		finally{
+			ticket.release();
+			if(ownTransaction)
+				esql.setAutoCommit(true);
+		}
+	}
+
+	// CONNECTION_USR holds at most one row per unordered pair of users. The
+	// NOT EXISTS guard keeps it so on any database; with connection_pair_idx
+	// (sql/indexes.sql) installed, ON CONFLICT also covers two racing inserts.
+	private static final String INSERT_CONNECTION =
+		"INSERT INTO CONNECTION_USR(userId, connectionId, status) SELECT '%1$s', '%2$s', '%3$s' " +
+		"WHERE NOT EXISTS (SELECT 1 FROM CONNECTION_USR WHERE %4$s) ON CONFLICT DO NOTHING";
+
+	// both directions of a pair, each an index probe on (userId, connectionId)
+	private static String connectionPair(String a, String b)
+	{
+		return String.format("(userId='%s' AND connectionId='%s') OR (userId='%s' AND connectionId='%s')", a, b, b, a);
+	}
+
+	// Asks receiver to accept a connection with sender. Safe to repeat.
+	// @return true if the request is new, false if the two users already have
+	//         a request or connection between them, in either direction
+	public static boolean requestConnection(ProfNetwork esql, String sender, String receiver) throws SQLException
+	{
+		AdmissionControl.Ticket ticket = admission.admit(sender, AdmissionControl.Cost.CHEAP);
+		try{
+			String addquery = String.format(INSERT_CONNECTION, receiver, sender, "Request", connectionPair(receiver, sender));
+			if(esql.executeUpdate(addquery) == 0)
+				return false;
+			counters.requestReceived(receiver);
+			activity.record(ActivityStats.Stream.REQUESTERS, sender);
+			return true;
+		}
+		finally{
+			ticket.release();
+		}
+	}
+
+	// Connects two users without a request, accepting one pending between
+	// them. A rejected request is left as it is. Safe to repeat.
+	// @return null if the users are connected by this call, otherwise the
+	//         status of the row already between them ("Accept" or "Reject")
+	public static String addConnection(ProfNetwork esql, String user, String connection) throws SQLException
+	{
+		String pair = connectionPair(user, connection);
+		String acceptquery = String.format("UPDATE CONNECTION_USR SET status='Accept' WHERE (%s) AND status='Request'", pair);
+		String addquery = String.format(INSERT_CONNECTION, user, connection, "Accept", pair);
+		if(esql.executeUpdate(acceptquery) == 0 && esql.executeUpdate(addquery) == 0)
+		{
+			List<List<String>> existing = esql.executeQueryAndReturnResult(String.format("SELECT status FROM CONNECTION_USR WHERE %s", pair));
+			// the row may have gone again in between; report it as connected
+			return existing.isEmpty() ? "Accept" : existing.get(0).get(0).trim();
+		}
+		connectionAccepted(user, connection);
+		// either user may have had the request pending
+		counters.invalidate(user);
+		counters.invalidate(connection);
+		return null;
+	}
+
+	// What SendRequest prints after addConnection
+	private static void printAddConnection(String existing)
+	{
+		if(existing == null)
+			System.out.print("\nConnection added!\n");
+		else if(existing.equals("Reject"))
+			System.out.print("\nA connection request between you and this user was rejected.\n");
+		else
+			System.out.print("\nA connection with this user already exists.\n");
+	}
+
+	// @return all MESSAGE rows sent by uid, archived ones first
+	public static List<List<String>> sentMessages(ProfNetwork esql, String uid) throws SQLException
+	{
+		AdmissionControl.Ticket ticket = admission.admit(uid, AdmissionControl.Cost.EXPENSIVE);
+		try{
+			String sent_query = String.format("SELECT * FROM MESSAGE WHERE senderId='%s'", uid);
+			List<List<String>> sent = esql.executeQueryAndReturnResultHedged(sent_query);
+			try{
+				return mergeArchived(sent, archive.sent(uid), MessageArchive.SEND_TIME);
+			}
+			catch(IOException e){
+				throw new SQLException("unable to read the message archive: " + e.getMessage(), e);
+			}
+		}
+		finally{
+			ticket.release();
+		}
+	}
+
+	// @return all MESSAGE rows received by uid, archived ones first
+	public static List<List<String>> receivedMessages(ProfNetwork esql, String uid) throws SQLException
+	{
+		AdmissionControl.Ticket ticket = admission.admit(uid, AdmissionControl.Cost.EXPENSIVE);
+		try{
+			return withArchivedReceived(uid, queryReceivedMessages(esql, uid));
+		}
+		finally{
+			ticket.release();
+		}
+	}
+
+	// The MESSAGE rows received by uid, without admission or archived rows,
+	// for callers that admitted the whole operation once and merge the
+	// archive once (ShardRouter runs it on every shard)
+	static List<List<String>> queryReceivedMessages(ProfNetwork esql, String uid) throws SQLException
+	{
+		String receive_query = String.format("SELECT * FROM MESSAGE WHERE receiverId='%s'", uid);
+		return esql.executeQueryAndReturnResultHedged(receive_query);
+	}
+
+	// @return the archived messages received by uid followed by rows
+	static List<List<String>> withArchivedReceived(String uid, List<List<String>> rows) throws SQLException
+	{
+		try{
+			return mergeArchived(rows, archive.received(uid), MessageArchive.SEND_TIME);
+		}
+		catch(IOException e){
+			throw new SQLException("unable to read the message archive: " + e.getMessage(), e);
+		}
+	}
+
+	private static List<List<String>> archivedConversation(String user, String other) throws SQLException
+	{
+		try{
+			return archive.conversation(user, other);
+		}
+		catch(IOException e){
+			throw new SQLException("unable to read the message archive: " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Puts archived rows ahead of the table rows, dropping archived copies of
+	 * messages still in the table (an archive run that rolled back). msgIds
+	 * are only unique within a shard, so a message is identified by its
+	 * msgId, sender and send time together. Rows start with msgId, senderId;
+	 * sendTime is the column at index sendTime.
+	 **/
+	private static List<List<String>> mergeArchived(List<List<String>> rows, List<List<String>> archived, int sendTime)
+	{
+		if(archived.isEmpty())
+			return rows;
+		Set<String> live = new HashSet<String>();
+		for(List<String> row : rows)
+			live.add(messageKey(row, sendTime));
+		List<List<String>> merged = new ArrayList<List<String>>(archived.size() + rows.size());
+		for(List<String> row : archived)
+			if(live.add(messageKey(row, sendTime)))
+				merged.add(row);
+		merged.addAll(rows);
+		return merged;
+	}
+
+	// msgId, senderId and sendTime of a message row
+	private static String messageKey(List<String> row, int sendTime)
+	{
+		return row.get(0).trim() + "|" + row.get(1).trim() + "|" + row.get(sendTime);
+	}
+
+	/*
+	 * Moves messages older than the given number of days to the archive.
+	 * Runs in the caller's transaction.
+	 * @return the number of messages archived
+	 **/
+	public static int archiveMessages(ProfNetwork esql, int days) throws SQLException, IOException
+	{
+		if(days < 0)
+			throw new IllegalArgumentException("days must not be negative");
+		return archive.archive(esql, days);
+	}
+
+	// results shown per page of a profile search
+	private static final int SEARCH_PAGE_SIZE = 20;
+
+	/*
+	 * Searches work and education entries with the in-memory profile index,
+	 * loading it on first use. Words must all match; OR separates alternatives,
+	 * and field:word matches one field only (company, role, location,
+	 * institution, major, degree).
+	 **/
+	public static ProfileIndex.Page searchProfiles(ProfNetwork esql, String user, String query, int offset, int limit) throws SQLException
+	{
+		AdmissionControl.Ticket ticket = admission.admit(user, AdmissionControl.Cost.NORMAL);
+		try{
+			ProfileIndex index = profileIndex;
+			if(index == null)
+				profileIndex = index = ProfileIndex.load(esql);
+			return index.search(query, offset, limit);
+		}
+		finally{
+			ticket.release();
+		}
+	}
+
+	// People search by what they do and where they studied, a page at a time
+	public static void SearchProfiles(ProfNetwork esql)
+	{
+		try{
+			System.out.print("\te.g. google engineer OR institution:stanford\n");
+			System.out.print("\tEnter search ('q' to quit): ");
+			String query = in.readLine();
+			if(query.equals("q")) return;
+
+			int offset = 0;
+			while(true)
+			{
+				ProfileIndex.Page page = searchProfiles(esql, loggedinUser, query, offset, SEARCH_PAGE_SIZE);
+				if(page.total == 0)
+				{
+					System.out.print("Nobody matches " + query + "\n");
+					return;
+				}
+				Map<String, String> names = new LinkedHashMap<String, String>();
+				for(List<String> row : esql.executePreparedAndReturnResult(
+						"SELECT userId, name FROM USR WHERE userId = ANY(?)", (Object) page.userIds.toArray(new String[0])))
+					names.put(row.get(0).trim(), row.get(1));
+				System.out.print("userid\tname\t\n");
+				for(String uid : page.userIds)
+					System.out.print(uid + "\t" + names.get(uid) + "\t\n");
+				offset += page.userIds.size();
+				System.out.print("(" + offset + " of " + page.total + ")\n");
+
+				System.out.print("Options\n");
+				System.out.print("-------\n");
+				System.out.print("0. Go back to Menu\n");
+				System.out.print("1. View Profile of Searched people\n");
+				if(offset < page.total)
+					System.out.print("2. Show more\n");
+				int choice = readChoice();
+				// "Show more" is only offered while there are more
+				if(choice == 2 && offset >= page.total)
+					choice = -1;
+				switch(choice)
+				{
+					case 0: return;
+					case 1:
+						System.out.print("Enter userId of a searched person: ");
+						viewProfileHelper(esql, in.readLine());
+						return;
+					case 2:
+						break;
+					default:
+						System.out.println("Unrecognized choice!");
+						return;
+				}
+			}
+		}
+		catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	} //end SearchProfiles
+
+	// @return name, userId, email of every user with exactly this full name;
+	// user is who searches, for admission
+	public static List<List<String>> searchPeople(ProfNetwork esql, String user, String name) throws SQLException
+	{
+		AdmissionControl.Ticket ticket = admission.admit(user, AdmissionControl.Cost.NORMAL);
+		try{
+			String query = String.format("SELECT name, userId, email FROM USR WHERE name='%s'", name);
+			return esql.executeQueryAndReturnResultHedged(query);
+		}
+		finally{
+			ticket.release();
+		}
+	}
+
+	// Returns the connection graph, loading it on first use
+	private static synchronized ConnectionGraph getGraph(ProfNetwork esql) throws SQLException
+	{
+		if(graph == null)
+			graph = ConnectionGraph.open(esql, GRAPH_SNAPSHOT);
+		return graph;
+	}
+
+	// Brings the graph up to date with the change log and saves it for the next start
+	private static void saveGraph(ProfNetwork esql)
+	{
+		if(graph == null)
+			return;
+		try{
+			graph.applyChanges(esql);
+			graph.save(GRAPH_SNAPSHOT);
+		}
+		catch(Exception e){
+			System.err.println("Unable to write graph snapshot: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Finds one shortest chain of accepted connections between two users
+	 * @return the userIds along the chain (both ends included), or null if
+	 *         they are more than MAX_SEPARATION hops apart
+	 **/
+	public static List<String> degreeOfSeparation(ProfNetwork esql, String from, String to) throws SQLException
+	{
+		ConnectionGraph g = getGraph(esql);
+		int[] ids = g.shortestPath(g.id(from), g.id(to), MAX_SEPARATION, SEPARATION_BUDGET_NANOS);
+		if(ids == null)
+			return null;
+		List<String> path = new ArrayList<String>();
+		for(int id : ids)
+			path.add(g.name(id));
+		return path;
+	}
+
+	// 1st, 2nd, 3rd ... degree label for a hop count
+	private static String degreeBadge(int hops)
+	{
+		switch(hops)
+		{
+			case 1: return "1st degree";
+			case 2: return "2nd degree";
+			case 3: return "3rd degree";
+			default: return hops + "th degree";
+		}
+	}
+
+	// Keeps the in-memory graph and suggestions in step with a newly accepted connection
+	private static void connectionAccepted(String user, String connection)
+	{
+		if(graph != null)
+			graph.addEdge(user, connection);
+		if(recommendations != null)
+		{
+			recommendations.invalidate(user);
+			recommendations.invalidate(connection);
+		}
+	}
+
+	// Keeps the in-memory graph and suggestions in step with a removed or rejected connection
+	private static void connectionRemoved(String user, String connection)
+	{
+		if(graph != null)
+			graph.removeEdge(user, connection);
+		if(recommendations != null)
+		{
+			recommendations.invalidate(user);
+			recommendations.invalidate(connection);
+		}
+	}
+
+	/*
+	 * Applies one change published by the cache notify triggers (see
+	 * sql/cache_notify.sql) to the local caches. Runs on the listener thread;
+	 * session is the listener's own connection.
+	 **/
+	static void cacheInvalidated(ProfNetwork session, String[] change) throws SQLException
+	{
+		String table = change[0];
+		queryCache.invalidate(table);
+		if(table.equals("usr"))
+		{
+			UserDirectory dir = directory;
+			if(dir != null && change[1].equals("INSERT"))
+				dir.add(change[2]);
+			else if(change[1].equals("DELETE"))
+				directory = null;
+		}
+		else if(table.equals("message"))
+			counters.invalidate(change[3]);
+		else if(table.equals("connection_usr"))
+		{
+			counters.invalidate(change[2]);
+			if(change[4].equals("Accept"))
+				connectionAccepted(change[2], change[3]);
+			else if(!change[4].equals("Request"))
+				connectionRemoved(change[2], change[3]);
+		}
+		else if(table.equals("work_expr") || table.equals("educational_details"))
+		{
+			Recommendations rec = recommendations;
+			if(rec != null)
+				rec.reloadProfile(session, change[2]);
+			ProfileIndex index = profileIndex;
+			if(index != null)
+				index.reloadUser(session, change[2]);
+		}
+	}
+
+	/*
+	 * Drops every cache so it is rebuilt on next use, for when change
+	 * notifications may have been missed
+	 **/
+	static void resyncCaches()
+	{
+		recommendations = null;
+		graph = null;
+		directory = null;
+		profileIndex = null;
+		queryCache.clear();
+	}
+
+	// Second degree users ranked by mutual connections and shared company/institution
+	public static void PeopleYouMayKnow(ProfNetwork esql)
+	{
+		try{
+			if(recommendations == null)
+				recommendations = Recommendations.load(esql, getGraph(esql));
+
+			List<Recommendations.Suggestion> suggestions = recommendations.suggest(loggedinUser);
+			System.out.print("\nPeople You May Know\n");
+			System.out.print("-------------------\n");
+			if(suggestions.size() == 0)
+			{
+				System.out.print("No suggestions yet, add some connections first.\n");
+				return;
+			}
+
+			System.out.print("UserId\t\tMutual Connections\n");
+			for(Recommendations.Suggestion s : suggestions)
+			{
+				String reason = s.sharedOrg ? "\t(same company/institution)" : "";
+				System.out.print(s.userId + "\t\t" + s.mutual + reason + "\n");
+			}
+
+			System.out.print("\n0. Go back to Menu\n");
+			System.out.print("1. View Profile\n");
+			switch(readChoice())
+			{
+				case 0:
+					break;
+				case 1:
+					System.out.print("Enter userId: ");
+					String uid_input = in.readLine();
+					viewProfileHelper(esql, uid_input);
+					break;
+				default:
+					System.out.println("Unrecognized choice!");
+					break;
+			}
+		}
+		catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	} //end PeopleYouMayKnow
+
 }//end ProfNetwork
@@ -0,0 +1,99 @@
+/*
+ * Profile
+ * =============================
+ *
+ * Everything shown on a profile page, read in one statement: the USR row,
+ * the viewer's connection status with the user, and every WORK_EXPR and
+ * EDUCATIONAL_DETAILS row, folded into arrays by lateral subqueries.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A user's profile as seen by another user.
+ */
+public class Profile {
+
+   private static final String QUERY =
+      "SELECT u.name, u.dateOfBirth::text, c.status, " +
+      "       w.company, w.role, w.location, w.startDate, w.endDate, " +
+      "       e.institutionName, e.major, e.degree, e.startDate, e.endDate " +
+      "FROM USR u " +
+      "LEFT JOIN LATERAL (SELECT status FROM CONNECTION_USR " +
+      "                   WHERE userId = ? AND connectionId = u.userId LIMIT 1) c ON true " +
+      "LEFT JOIN LATERAL (SELECT array_agg(company::text ORDER BY startDate) AS company, " +
+      "                          array_agg(role::text ORDER BY startDate) AS role, " +
+      "                          array_agg(location::text ORDER BY startDate) AS location, " +
+      "                          array_agg(startDate::text ORDER BY startDate) AS startDate, " +
+      "                          array_agg(endDate::text ORDER BY startDate) AS endDate " +
+      "                   FROM WORK_EXPR WHERE userId = u.userId) w ON true " +
+      "LEFT JOIN LATERAL (SELECT array_agg(institutionName::text ORDER BY startDate) AS institutionName, " +
+      "                          array_agg(major::text ORDER BY startDate) AS major, " +
+      "                          array_agg(degree::text ORDER BY startDate) AS degree, " +
+      "                          array_agg(startDate::text ORDER BY startDate) AS startDate, " +
+      "                          array_agg(endDate::text ORDER BY startDate) AS endDate " +
+      "                   FROM EDUCATIONAL_DETAILS WHERE userId = u.userId) e ON true " +
+      "WHERE u.userId = ?";
+
+   public final String userId;
+   public final String name;
+   public final String dateOfBirth;
+
+   // the viewer's CONNECTION_USR status with this user, null if none
+   public final String connectionStatus;
+
+   // one row per WORK_EXPR entry: company, role, location, startDate, endDate
+   public final String[][] work;
+
+   // one row per EDUCATIONAL_DETAILS entry: institutionName, major, degree, startDate, endDate
+   public final String[][] education;
+
+   private Profile(String userId, List<Object> row){
+      this.userId = userId;
+      this.name = (String) row.get(0);
+      this.dateOfBirth = (String) row.get(1);
+      this.connectionStatus = row.get(2) == null ? null : ((String) row.get(2)).trim();
+      this.work = columnsToRows(row, 3, 5);
+      this.education = columnsToRows(row, 8, 5);
+   }
+
+   /**
+    * Reads a profile in one round trip.
+    *
+    * @param esql the database session
+    * @param viewer the user looking at the profile
+    * @param userId the user whose profile it is
+    * @return the profile, or null if there is no such user
+    * @throws java.sql.SQLException when the profile could not be read
+    */
+   public static Profile fetch(ProfNetwork esql, String viewer, String userId) throws SQLException {
+      List<List<Object>> rows = esql.executePreparedAndReturnValues(QUERY, viewer, userId);
+      return rows.isEmpty() ? null : new Profile(userId, rows.get(0));
+   }//end fetch
+
+   /**
+    * @return true if the viewer has a connection row with this user
+    */
+   public boolean connected(){
+      return this.connectionStatus != null;
+   }//end connected
+
+   // transposes count parallel array columns starting at first into rows
+   private static String[][] columnsToRows(List<Object> row, int first, int count){
+      Object[] lead = (Object[]) row.get(first);
+      if (lead == null) return new String[0][];
+      String[][] rows = new String[lead.length][count];
+      for (int c = 0; c < count; c++){
+         Object[] column = (Object[]) row.get(first + c);
+         for (int r = 0; r < lead.length; r++)
+            rows[r][c] = (String) column[r];
+      }//end for
+      return rows;
+   }//end columnsToRows
+
+}//end Profile
@@ -0,0 +1,274 @@
+/*
+ * Profile search index
+ * =============================
+ *
+ * In-memory inverted index over the searchable profile fields:
+ *
+ *    WORK_EXPR            company, role, location
+ *    EDUCATIONAL_DETAILS  institutionName, major, degree
+ *
+ * Values are split into lower cased words. Each word maps to the sorted
+ * list of UserIds dictionary ids of the users having it, once on its own ("google") and
+ * once qualified by its field ("company:google"). A user's postings are
+ * replaced whenever that user's profile changes.
+ *
+ * Queries are words separated by spaces, all of which must match, and
+ * alternatives separated by OR:
+ *
+ *    google engineer OR institution:stanford
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Word to user postings for people search by company, role, location,
+ * institution, major and degree.
+ */
+public class ProfileIndex {
+
+   // column, field name used in qualified words
+   private static final String[][] WORK_FIELDS = {
+      {"company", "company"}, {"role", "role"}, {"location", "location"}
+   };
+   private static final String[][] EDUCATION_FIELDS = {
+      {"institutionName", "institution"}, {"major", "major"}, {"degree", "degree"}
+   };
+
+   private static final int[] NONE = new int[0];
+
+   private final UserIds _dict;
+
+   // word -> sorted user ids; arrays are never modified once published
+   private final Map<String, int[]> _postings = new ConcurrentHashMap<String, int[]>();
+
+   // user id -> the words currently indexed for it, to undo on update
+   private final Map<Integer, Set<String>> _words = new HashMap<Integer, Set<String>>();
+
+   /**
+    * One page of matching users.
+    */
+   public static class Page {
+      public final List<String> userIds;
+      public final int total;
+
+      Page(List<String> userIds, int total){
+         this.userIds = userIds;
+         this.total = total;
+      }
+   }//end Page
+
+   private ProfileIndex(UserIds dict){
+      this._dict = dict;
+   }
+
+   /**
+    * Indexes the work and education entries of every user.
+    *
+    * @param esql the database session
+    * @return the populated index
+    * @throws java.sql.SQLException when the profile tables could not be read
+    */
+   public static ProfileIndex load(ProfNetwork esql) throws SQLException {
+      ProfileIndex index = new ProfileIndex(ProfNetwork.userIds);
+      // sorted by user id, so each posting list is built in order
+      Map<Integer, Set<String>> words = new TreeMap<Integer, Set<String>>();
+      index.collect(esql.executeQueryAndReturnResult("SELECT userId, company, role, location FROM WORK_EXPR"), WORK_FIELDS, words);
+      index.collect(esql.executeQueryAndReturnResult("SELECT userId, institutionName, major, degree FROM EDUCATIONAL_DETAILS"), EDUCATION_FIELDS, words);
+
+      // build every posting list in one pass
+      Map<String, List<Integer>> postings = new HashMap<String, List<Integer>>();
+      for (Map.Entry<Integer, Set<String>> user : words.entrySet()){
+         int u = user.getKey();
+         index._words.put(u, user.getValue());
+         for (String word : user.getValue()){
+            List<Integer> list = postings.get(word);
+            if (list == null) postings.put(word, list = new ArrayList<Integer>());
+            list.add(u);
+         }//end for
+      }//end for
+      for (Map.Entry<String, List<Integer>> e : postings.entrySet()){
+         int[] ids = new int[e.getValue().size()];
+         for (int i = 0; i < ids.length; i++)
+            ids[i] = e.getValue().get(i);
+         index._postings.put(e.getKey(), ids);
+      }//end for
+      return index;
+   }//end load
+
+   /**
+    * Re-reads one user's work and education entries and replaces the
+    * user's postings.
+    *
+    * @throws java.sql.SQLException when the profile could not be read
+    */
+   public void reloadUser(ProfNetwork esql, String userId) throws SQLException {
+      String uid = userId.trim();
+      Map<Integer, Set<String>> words = new HashMap<Integer, Set<String>>();
+      collect(esql.executeQueryAndReturnResult(String.format(
+         "SELECT userId, company, role, location FROM WORK_EXPR WHERE userId='%s'", uid)), WORK_FIELDS, words);
+      collect(esql.executeQueryAndReturnResult(String.format(
+         "SELECT userId, institutionName, major, degree FROM EDUCATIONAL_DETAILS WHERE userId='%s'", uid)), EDUCATION_FIELDS, words);
+      int u = this._dict.intern(uid);
+      Set<String> now = words.containsKey(u) ? words.get(u) : new HashSet<String>();
+
+      synchronized (this){
+         Set<String> before = this._words.containsKey(u) ? this._words.get(u) : new HashSet<String>();
+         for (String word : before){
+            if (now.contains(word)) continue;
+            int[] rest = without(this._postings.get(word), u);
+            if (rest == null || rest.length == 0) this._postings.remove(word);
+            else this._postings.put(word, rest);
+         }//end for
+         for (String word : now)
+            if (!before.contains(word))
+               this._postings.put(word, with(this._postings.get(word), u));
+         this._words.put(u, now);
+      }//end synchronized
+   }//end reloadUser
+
+   /**
+    * Runs a query and returns one page of the matching userIds, ordered by
+    * dictionary id, which stays the same from one page to the next.
+    *
+    * @param query words to match, OR between alternatives
+    * @param offset matches to skip
+    * @param limit maximum matches returned
+    * @return the page and the total number of matches
+    */
+   public Page search(String query, int offset, int limit){
+      int[] result = NONE;
+      for (String alternative : query.trim().split("\\s+OR\\s+")){
+         int[] matches = null;
+         List<String> terms = new ArrayList<String>();
+         for (String term : alternative.trim().split("\\s+"))
+            terms.addAll(tokenize(term, term.indexOf(':') > 0));
+         if (terms.isEmpty()) continue;
+
+         // intersect the shortest lists first
+         int[][] lists = new int[terms.size()][];
+         for (int i = 0; i < lists.length; i++){
+            lists[i] = this._postings.get(terms.get(i));
+            if (lists[i] == null) lists[i] = NONE;
+         }//end for
+         Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+         for (int[] list : lists){
+            matches = matches == null ? list : intersect(matches, list);
+            if (matches.length == 0) break;
+         }//end for
+         result = union(result, matches);
+      }//end for
+
+      List<String> page = new ArrayList<String>();
+      for (int i = Math.max(0, offset); i < result.length && page.size() < limit; i++)
+         page.add(this._dict.name(result[i]));
+      return new Page(page, result.length);
+   }//end search
+
+   // adds the words of each row's fields to the row's user
+   private void collect(List<List<String>> rows, String[][] fields, Map<Integer, Set<String>> words){
+      for (List<String> row : rows){
+         int user = this._dict.intern(row.get(0));
+         Set<String> set = words.get(user);
+         if (set == null) words.put(user, set = new HashSet<String>());
+         for (int f = 0; f < fields.length; f++){
+            String value = row.get(f + 1);
+            if (value == null) continue;
+            for (String word : tokenize(value, false)){
+               set.add(word);
+               set.add(fields[f][1] + ":" + word);
+            }//end for
+         }//end for
+      }//end for
+   }//end collect
+
+   /**
+    * Lower cased words of a value. A qualified query term ("company:acme
+    * corp" is not one term, "company:acme" is) keeps its field prefix on
+    * every word.
+    */
+   static List<String> tokenize(String value, boolean qualified){
+      String prefix = "";
+      if (qualified){
+         int colon = value.indexOf(':');
+         prefix = value.substring(0, colon).toLowerCase() + ":";
+         value = value.substring(colon + 1);
+      }//end if
+      List<String> words = new ArrayList<String>();
+      for (String word : value.toLowerCase().split("[^\\p{L}\\p{N}]+"))
+         if (word.length() > 0)
+            words.add(prefix + word);
+      return words;
+   }//end tokenize
+
+   // ids present in both sorted lists; gallops through the longer one
+   static int[] intersect(int[] small, int[] large){
+      int[] out = new int[Math.min(small.length, large.length)];
+      int n = 0, j = 0;
+      for (int i = 0; i < small.length && j < large.length; i++){
+         int x = small[i];
+         int step = 1;
+         while (j + step < large.length && large[j + step] < x){
+            j += step;
+            step <<= 1;
+         }//end while
+         int hi = Math.min(j + step, large.length - 1);
+         int pos = Arrays.binarySearch(large, j, hi + 1, x);
+         if (pos >= 0){
+            out[n++] = x;
+            j = pos + 1;
+         }else{
+            j = -pos - 1;
+         }//end if
+      }//end for
+      return Arrays.copyOf(out, n);
+   }//end intersect
+
+   // ids present in either sorted list
+   static int[] union(int[] a, int[] b){
+      if (a.length == 0) return b;
+      if (b.length == 0) return a;
+      int[] out = new int[a.length + b.length];
+      int i = 0, j = 0, n = 0;
+      while (i < a.length || j < b.length){
+         if (j == b.length || (i < a.length && a[i] < b[j])) out[n++] = a[i++];
+         else if (i == a.length || b[j] < a[i]) out[n++] = b[j++];
+         else { out[n++] = a[i++]; j++; }
+      }//end while
+      return Arrays.copyOf(out, n);
+   }//end union
+
+   private static int[] with(int[] list, int id){
+      if (list == null) return new int[] { id };
+      int pos = Arrays.binarySearch(list, id);
+      if (pos >= 0) return list;
+      pos = -pos - 1;
+      int[] out = new int[list.length + 1];
+      System.arraycopy(list, 0, out, 0, pos);
+      out[pos] = id;
+      System.arraycopy(list, pos, out, pos + 1, list.length - pos);
+      return out;
+   }//end with
+
+   private static int[] without(int[] list, int id){
+      int pos = list == null ? -1 : Arrays.binarySearch(list, id);
+      if (pos < 0) return list;
+      int[] out = new int[list.length - 1];
+      System.arraycopy(list, 0, out, 0, pos);
+      System.arraycopy(list, pos + 1, out, pos, list.length - pos - 1);
+      return out;
+   }//end without
+
+}//end ProfileIndex
@@ -0,0 +1,146 @@
+/*
+ * Flight recorder events
+ * =============================
+ *
+ * Custom Java Flight Recorder events, so a latency spike in a recording can
+ * be traced to the menu action or command and the SQL behind it:
+ *
+ *    profnetwork.Operation  one menu action or scripted command
+ *    profnetwork.Statement  one statement run through ProfNetwork, with the
+ *                           operation it ran under
+ *
+ * Record with, for example:
+ *
+ *    java -XX:StartFlightRecording:filename=session.jfr ProfNetwork ...
+ *
+ * When no recording is running an event is never committed and the SQL
+ * template is never computed.
+ *
+ */
+
+
+import java.util.regex.Pattern;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Event types and helpers for timing operations and statements.
+ */
+public class ProfilingEvents {
+
+   @Name("profnetwork.Operation")
+   @Label("Operation")
+   @Category("ProfNetwork")
+   @Description("A menu action or scripted command")
+   public static class OperationEvent extends Event {
+      @Label("Operation")
+      String operation;
+
+      @Label("User")
+      String user;
+   }//end OperationEvent
+
+   @Name("profnetwork.Statement")
+   @Label("Statement")
+   @Category("ProfNetwork")
+   @Description("A SQL statement run through ProfNetwork")
+   public static class StatementEvent extends Event {
+      @Label("Operation")
+      String operation;
+
+      @Label("SQL Template")
+      @Description("The statement with literals replaced by ?")
+      String sql;
+
+      @Label("Rows")
+      @Description("Rows returned or affected")
+      long rows;
+
+      @Label("Cached")
+      boolean cached;
+   }//end StatementEvent
+
+   // literals folded out of SQL templates
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+
+   // the operation the current thread is running, for statement events
+   private static final ThreadLocal<String> current = new ThreadLocal<String>();
+
+   /**
+    * Starts timing an operation on the current thread.
+    *
+    * @return the event to pass to endOperation
+    */
+   public static OperationEvent beginOperation(String operation, String user){
+      OperationEvent event = new OperationEvent();
+      event.operation = operation;
+      event.user = user;
+      current.set(operation);
+      event.begin();
+      return event;
+   }//end beginOperation
+
+   /**
+    * Ends an operation started by beginOperation.
+    */
+   public static void endOperation(OperationEvent event){
+      current.remove();
+      event.commit();
+   }//end endOperation
+
+   /**
+    * @return the operation the current thread is running, null if none
+    */
+   static String currentOperation(){
+      return current.get();
+   }//end currentOperation
+
+   /**
+    * Attributes the current thread's statements to an operation started on
+    * another thread; null clears it.
+    */
+   static void setCurrentOperation(String operation){
+      if (operation == null) current.remove();
+      else current.set(operation);
+   }//end setCurrentOperation
+
+   /**
+    * Starts timing a statement.
+    */
+   static StatementEvent beginStatement(){
+      StatementEvent event = new StatementEvent();
+      event.begin();
+      return event;
+   }//end beginStatement
+
+   /**
+    * Ends a statement, filling in the details only if the event is recorded.
+    *
+    * @param rows rows returned or affected, -1 if unknown (it failed)
+    */
+   static void endStatement(StatementEvent event, String sql, long rows, boolean cached){
+      event.end();
+      if (!event.shouldCommit()) return;
+      event.operation = current.get();
+      event.sql = template(sql);
+      event.rows = rows;
+      event.cached = cached;
+      event.commit();
+   }//end endStatement
+
+   /**
+    * @return the statement with string and number literals replaced by ?,
+    *         so statements differing only in their values group together
+    */
+   static String template(String sql){
+      String t = STRING_LITERAL.matcher(sql).replaceAll("?");
+      t = NUMBER_LITERAL.matcher(t).replaceAll("?");
+      return t.trim().replaceAll("\\s+", " ");
+   }//end template
+
+}//end ProfilingEvents
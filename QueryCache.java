@@ -0,0 +1,267 @@
+/*
+ * Query result cache
+ * =============================
+ *
+ * Keeps the rows of recent SELECTs, keyed by database, statement text with
+ * whitespace collapsed, and parameters. Each entry depends on the
+ * application tables its statement names; a write to a table, seen through
+ * executeUpdate or a change notification, drops exactly the entries that
+ * depend on it.
+ *
+ * Entries are evicted least recently used first once the cache holds more
+ * than its entry or byte limit, and expire after a short time in case a
+ * write from elsewhere was not seen.
+ *
+ *    -Dprofnetwork.queryCache.entries   maximum entries (default 1000, 0 turns the cache off)
+ *    -Dprofnetwork.queryCache.bytes     maximum estimated size (default 16 MB)
+ *    -Dprofnetwork.queryCache.ttlMs     maximum age of an entry (default 5000)
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Size bounded LRU cache of query results with table level invalidation.
+ */
+public class QueryCache {
+
+   // the tables entries can depend on
+   static final String[] TABLES = { "USR", "CONNECTION_USR", "MESSAGE", "WORK_EXPR", "EDUCATIONAL_DETAILS" };
+
+   private static final Pattern TABLE = Pattern.compile(
+      "\\b(USR|CONNECTION_USR|MESSAGE|WORK_EXPR|EDUCATIONAL_DETAILS)\\b", Pattern.CASE_INSENSITIVE);
+
+   // results that must never be reused
+   private static final Pattern VOLATILE = Pattern.compile(
+      "\\bFOR\\s+(UPDATE|SHARE)\\b|\\bnow\\s*\\(|\\bcurrent_(timestamp|date|time)\\b|\\brandom\\s*\\(|\\b(currval|nextval)\\s*\\(",
+      Pattern.CASE_INSENSITIVE);
+
+   private static final class Entry {
+      final List<?> rows;
+      final Set<String> tables;
+      final long bytes;
+      final long created = System.nanoTime();
+
+      Entry(List<?> rows, Set<String> tables, long bytes){
+         this.rows = rows;
+         this.tables = tables;
+         this.bytes = bytes;
+      }
+   }//end Entry
+
+   private final int _maxEntries;
+   private final long _maxBytes;
+   private final long _ttlNanos;
+
+   private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+   // table -> keys of the entries depending on it
+   private final Map<String, Set<String>> _dependents = new LinkedHashMap<String, Set<String>>();
+
+   // bumped on every invalidation of a table, so a result read before a
+   // write is not stored after it
+   private final Map<String, Long> _generation = new LinkedHashMap<String, Long>();
+
+   private long _bytes, _hits, _misses, _evictions, _invalidations;
+
+   public QueryCache(){
+      this(Integer.getInteger("profnetwork.queryCache.entries", 1000),
+           Long.getLong("profnetwork.queryCache.bytes", 16L << 20),
+           Long.getLong("profnetwork.queryCache.ttlMs", 5000L));
+   }
+
+   QueryCache(int maxEntries, long maxBytes, long ttlMillis){
+      this._maxEntries = maxEntries;
+      this._maxBytes = maxBytes;
+      this._ttlNanos = ttlMillis * 1000000L;
+      for (String t : TABLES){
+         this._dependents.put(t, new HashSet<String>());
+         this._generation.put(t, 0L);
+      }//end for
+   }
+
+   /**
+    * A lookup ticket: the cache key and the table generations at the time
+    * of the lookup; null when the statement is not cacheable.
+    */
+   static final class Lookup {
+      final String key;
+      final Set<String> tables;
+      final long[] generations;
+
+      Lookup(String key, Set<String> tables, long[] generations){
+         this.key = key;
+         this.tables = tables;
+         this.generations = generations;
+      }
+   }//end Lookup
+
+   /**
+    * @return a lookup for a SELECT on the given database, or null if its
+    *         result must not be cached
+    */
+   synchronized Lookup lookup(String database, String sql, Object... params){
+      if (this._maxEntries <= 0) return null;
+      String normalized = sql.trim().replaceAll("\\s+", " ");
+      if (!normalized.regionMatches(true, 0, "SELECT", 0, 6) || VOLATILE.matcher(normalized).find())
+         return null;
+      Set<String> tables = tables(normalized);
+      if (tables.isEmpty()) return null;
+
+      StringBuilder key = new StringBuilder(database).append('\u0000').append(normalized);
+      for (Object p : params)
+         key.append('\u0000').append(p instanceof Object[] ? Arrays.deepToString((Object[]) p) : String.valueOf(p));
+      long[] generations = new long[TABLES.length];
+      for (int i = 0; i < TABLES.length; i++)
+         generations[i] = this._generation.get(TABLES[i]);
+      return new Lookup(key.toString(), tables, generations);
+   }//end lookup
+
+   /**
+    * @return a copy of the cached rows, or null on a miss
+    */
+   @SuppressWarnings("unchecked")
+   synchronized <T> List<List<T>> get(Lookup lookup){
+      Entry e = this._entries.get(lookup.key);
+      if (e != null && System.nanoTime() - e.created > this._ttlNanos){
+         remove(lookup.key);
+         e = null;
+      }//end if
+      if (e == null){
+         this._misses++;
+         return null;
+      }//end if
+      this._hits++;
+      return copy((List<List<T>>) e.rows);
+   }//end get
+
+   /**
+    * Stores the rows read for a lookup, unless one of its tables was written
+    * since the lookup was made.
+    */
+   synchronized <T> void put(Lookup lookup, List<List<T>> rows){
+      for (int i = 0; i < TABLES.length; i++)
+         if (this._generation.get(TABLES[i]) != lookup.generations[i] && lookup.tables.contains(TABLES[i]))
+            return;
+      long bytes = lookup.key.length() * 2L + estimate(rows);
+      if (bytes > this._maxBytes) return;
+
+      remove(lookup.key);
+      this._entries.put(lookup.key, new Entry(copy(rows), lookup.tables, bytes));
+      for (String t : lookup.tables)
+         this._dependents.get(t).add(lookup.key);
+      this._bytes += bytes;
+
+      Iterator<String> lru = this._entries.keySet().iterator();
+      while ((this._entries.size() > this._maxEntries || this._bytes > this._maxBytes) && lru.hasNext()){
+         String oldest = lru.next();
+         Entry e = this._entries.get(oldest);
+         lru.remove();
+         unlink(oldest, e);
+         this._evictions++;
+      }//end while
+   }//end put
+
+   /**
+    * Drops the entries depending on every application table a write
+    * statement names.
+    */
+   public synchronized void invalidateStatement(String sql){
+      for (String t : tables(sql))
+         invalidate(t);
+   }//end invalidateStatement
+
+   /**
+    * Drops every entry depending on a table.
+    *
+    * @param table the table name, in any case
+    */
+   public synchronized void invalidate(String table){
+      String t = table.toUpperCase();
+      Set<String> keys = this._dependents.get(t);
+      if (keys == null) return;
+      this._generation.put(t, this._generation.get(t) + 1);
+      for (String key : new ArrayList<String>(keys))
+         remove(key);
+      this._invalidations++;
+   }//end invalidate
+
+   /**
+    * Drops everything.
+    */
+   public synchronized void clear(){
+      for (String t : TABLES)
+         invalidate(t);
+   }//end clear
+
+   /**
+    * @return hit ratio, size and eviction counts, for reports
+    */
+   public synchronized String stats(){
+      long lookups = this._hits + this._misses;
+      return String.format("%d entries, %.1f KB, %d hits / %d lookups (%.1f%%), %d evictions, %d invalidations",
+         this._entries.size(), this._bytes / 1024.0, this._hits, lookups,
+         lookups == 0 ? 0.0 : 100.0 * this._hits / lookups, this._evictions, this._invalidations);
+   }//end stats
+
+   private void remove(String key){
+      Entry e = this._entries.remove(key);
+      if (e != null) unlink(key, e);
+   }//end remove
+
+   private void unlink(String key, Entry e){
+      for (String t : e.tables)
+         this._dependents.get(t).remove(key);
+      this._bytes -= e.bytes;
+   }//end unlink
+
+   private static Set<String> tables(String sql){
+      Set<String> tables = new HashSet<String>();
+      Matcher m = TABLE.matcher(sql);
+      while (m.find())
+         tables.add(m.group(1).toUpperCase());
+      return tables;
+   }//end tables
+
+   // rows are shared with the cache, so callers get their own lists
+   private static <T> List<List<T>> copy(List<List<T>> rows){
+      List<List<T>> copy = new ArrayList<List<T>>(rows.size());
+      for (List<T> row : rows)
+         copy.add(new ArrayList<T>(row));
+      return copy;
+   }//end copy
+
+   // rough heap size of the rows: list and string headers plus characters
+   private static long estimate(List<? extends List<?>> rows){
+      long bytes = 40;
+      for (List<?> row : rows){
+         bytes += 40;
+         for (Object value : row)
+            bytes += estimate(value);
+      }//end for
+      return bytes;
+   }//end estimate
+
+   private static long estimate(Object value){
+      if (value == null) return 8;
+      if (value instanceof String) return 48 + 2L * ((String) value).length();
+      if (value instanceof Object[]){
+         long bytes = 24;
+         for (Object v : (Object[]) value)
+            bytes += estimate(v);
+         return bytes;
+      }//end if
+      return 24;
+   }//end estimate
+
+}//end QueryCache
@@ -0,0 +1,233 @@
+/*
+ * People you may know
+ * =============================
+ *
+ * Ranks second degree connections by the number of mutual connections,
+ * with a bonus for sharing a company (WORK_EXPR) or an institution
+ * (EDUCATIONAL_DETAILS). Suggestions for every user are computed up front
+ * in parallel over the in-memory ConnectionGraph and cached per user.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Precomputed, per user cache of connection suggestions.
+ */
+public class Recommendations {
+
+   // number of suggestions kept per user
+   private static final int MAX_SUGGESTIONS = 10;
+
+   // score weights
+   private static final int MUTUAL_WEIGHT = 1;
+   private static final int SHARED_ORG_WEIGHT = 2;
+
+   // users handled by one fork-join leaf task
+   private static final int BATCH_SIZE = 256;
+
+   /**
+    * A suggested user together with the reasons for the suggestion.
+    */
+   public static class Suggestion {
+      public final String userId;
+      public final int mutual;
+      public final boolean sharedOrg;
+      public final int score;
+
+      Suggestion(String userId, int mutual, boolean sharedOrg){
+         this.userId = userId;
+         this.mutual = mutual;
+         this.sharedOrg = sharedOrg;
+         this.score = mutual * MUTUAL_WEIGHT + (sharedOrg ? SHARED_ORG_WEIGHT : 0);
+      }
+   }//end Suggestion
+
+   private final ConnectionGraph _graph;
+
+   // dense user id -> lower cased companies and institutions
+   private final Map<Integer, Set<String>> _orgs = new ConcurrentHashMap<Integer, Set<String>>();
+
+   // dense user id -> ranked suggestions
+   private final Map<Integer, List<Suggestion>> _cache = new ConcurrentHashMap<Integer, List<Suggestion>>();
+
+   private Recommendations(ConnectionGraph graph){
+      this._graph = graph;
+   }
+
+   /**
+    * Loads companies and institutions for all users and precomputes the
+    * suggestions of every user in the graph.
+    *
+    * @param esql the database session
+    * @param graph the connection graph to walk
+    * @return the populated recommendations
+    * @throws java.sql.SQLException when the profile data could not be read
+    */
+   public static Recommendations load(ProfNetwork esql, ConnectionGraph graph) throws SQLException {
+      Recommendations rec = new Recommendations(graph);
+      rec.addOrgs(esql.executeQueryAndReturnResult("SELECT userId, company FROM WORK_EXPR"));
+      rec.addOrgs(esql.executeQueryAndReturnResult("SELECT userId, institutionName FROM EDUCATIONAL_DETAILS"));
+      rec.precomputeAll();
+      return rec;
+   }//end load
+
+   private void addOrgs(List<List<String>> rows){
+      for (List<String> row : rows){
+         if (row.get(1) == null) continue;
+         int user = ProfNetwork.userIds.intern(row.get(0));
+         Set<String> orgs = this._orgs.get(user);
+         if (orgs == null){
+            orgs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            this._orgs.put(user, orgs);
+         }//end if
+         orgs.add(row.get(1).trim().toLowerCase());
+      }//end for
+   }//end addOrgs
+
+   /**
+    * Recomputes the suggestions of every user, in parallel batches.
+    */
+   public void precomputeAll(){
+      ForkJoinPool.commonPool().invoke(new Batch(0, this._graph.size()));
+   }//end precomputeAll
+
+   /**
+    * Returns the ranked suggestions for a user. Served from the cache; a
+    * user whose entry was invalidated is recomputed from memory only.
+    *
+    * @param userId the user asking for suggestions
+    * @return ranked suggestions, empty if the user has no connections
+    */
+   public List<Suggestion> suggest(String userId){
+      int u = this._graph.id(userId);
+      if (u < 0) return Collections.emptyList();
+      List<Suggestion> result = this._cache.get(u);
+      if (result == null){
+         result = compute(u, new Counts(this._graph.size()));
+         this._cache.put(u, result);
+      }//end if
+      return result;
+   }//end suggest
+
+   /**
+    * Drops cached suggestions affected by a change to a user's connections:
+    * the user and everyone directly connected to them.
+    */
+   public void invalidate(String userId){
+      int u = this._graph.id(userId);
+      if (u < 0) return;
+      this._cache.remove(u);
+      for (int v : this._graph.neighbors(u))
+         this._cache.remove(v);
+   }//end invalidate
+
+   /**
+    * Re-reads the company and institution of one user after a profile update.
+    *
+    * @throws java.sql.SQLException when the profile could not be read
+    */
+   public void reloadProfile(ProfNetwork esql, String userId) throws SQLException {
+      this._orgs.remove(ProfNetwork.userIds.intern(userId));
+      addOrgs(esql.executeQueryAndReturnResult(String.format("SELECT userId, company FROM WORK_EXPR WHERE userId='%s'", userId)));
+      addOrgs(esql.executeQueryAndReturnResult(String.format("SELECT userId, institutionName FROM EDUCATIONAL_DETAILS WHERE userId='%s'", userId)));
+      // the user's orgs affect the scores seen by their second degree users
+      int u = this._graph.id(userId);
+      if (u < 0) return;
+      for (int v : this._graph.neighbors(u))
+         invalidate(this._graph.name(v));
+   }//end reloadProfile
+
+   /**
+    * Ranks the second degree users of u. counts is left zeroed on return.
+    */
+   private List<Suggestion> compute(int u, Counts counts){
+      int[] direct = this._graph.neighbors(u);
+      List<Integer> touched = new ArrayList<Integer>();
+      for (int v : direct){
+         for (int w : this._graph.neighbors(v)){
+            if (w == u || this._graph.connected(u, w)) continue;
+            if (counts.increment(w)) touched.add(w);
+         }//end for
+      }//end for
+
+      Set<String> myOrgs = this._orgs.get(u);
+      List<Suggestion> ranked = new ArrayList<Suggestion>(touched.size());
+      for (int w : touched){
+         ranked.add(new Suggestion(this._graph.name(w), counts.values[w], sharesOrg(myOrgs, this._orgs.get(w))));
+         counts.values[w] = 0;
+      }//end for
+
+      Collections.sort(ranked, (a, b) -> a.score != b.score
+         ? Integer.compare(b.score, a.score) : a.userId.compareTo(b.userId));
+      if (ranked.size() > MAX_SUGGESTIONS)
+         ranked = new ArrayList<Suggestion>(ranked.subList(0, MAX_SUGGESTIONS));
+      return Collections.unmodifiableList(ranked);
+   }//end compute
+
+   /**
+    * Scratch counts over the dense ids, reused across the users of a batch.
+    * The graph may gain users while they are counted (addEdge), so the
+    * array grows on demand instead of being sized once.
+    */
+   private static class Counts {
+      int[] values;
+
+      Counts(int n){
+         this.values = new int[n];
+      }
+
+      // counts one more path to w; true if it is the first
+      boolean increment(int w){
+         if (w >= this.values.length)
+            this.values = Arrays.copyOf(this.values, Math.max(w + 1, this.values.length * 2));
+         return this.values[w]++ == 0;
+      }//end increment
+   }//end Counts
+
+   private static boolean sharesOrg(Set<String> a, Set<String> b){
+      if (a == null || b == null) return false;
+      Set<String> common = new HashSet<String>(a);
+      common.retainAll(b);
+      return !common.isEmpty();
+   }//end sharesOrg
+
+   /**
+    * Fork-join task computing the suggestions of a range of dense ids.
+    */
+   private class Batch extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final int _lo, _hi;
+
+      Batch(int lo, int hi){
+         this._lo = lo;
+         this._hi = hi;
+      }
+
+      protected void compute(){
+         if (this._hi - this._lo <= BATCH_SIZE){
+            Counts counts = new Counts(Recommendations.this._graph.size());
+            for (int u = this._lo; u < this._hi; u++)
+               Recommendations.this._cache.put(u, Recommendations.this.compute(u, counts));
+            return;
+         }//end if
+         int mid = (this._lo + this._hi) >>> 1;
+         invokeAll(new Batch(this._lo, mid), new Batch(mid, this._hi));
+      }
+   }//end Batch
+
+}//end Recommendations
@@ -0,0 +1,355 @@
+/*
+ * Shard routing for MESSAGE and CONNECTION_USR
+ * =============================
+ *
+ * Spreads messages and connections over several Postgres databases by
+ * consistent hashing of the owning userId:
+ *
+ *    MESSAGE rows live on the shard of their senderId
+ *    CONNECTION_USR rows live on the shard of their userId
+ *
+ * Lookups by the owning user go to one shard; lookups by the other column
+ * (received messages, incoming connections) fan out to every shard in
+ * parallel and are merged. Every shard needs the application schema; USR
+ * and the profile tables stay on the first database, so foreign keys from
+ * MESSAGE/CONNECTION_USR to USR must be dropped on the other shards.
+ *
+ * msgIds are allocated per shard and are only unique within their shard.
+ *
+ * Running the class rebalances: every user whose rows sit on a shard other
+ * than the one the ring assigns them to is moved.
+ *
+ *    java ShardRouter <port> <user> <db> [<db> ...]
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Routes the message and connection operations of ProfNetwork to shards.
+ */
+public class ShardRouter {
+
+   // points per shard on the hash ring; more points give a more even spread
+   private static final int VIRTUAL_NODES = 64;
+
+   private final List<ProfNetwork> _shards;
+   private final TreeMap<Long, Integer> _ring = new TreeMap<Long, Integer>();
+   private final ExecutorService _pool;
+
+   /**
+    * @param shards one session per shard database, in a fixed order; the
+    *        order (not the database names) determines placement
+    */
+   public ShardRouter(List<ProfNetwork> shards){
+      this._shards = shards;
+      for (int s = 0; s < shards.size(); s++)
+         for (int v = 0; v < VIRTUAL_NODES; v++)
+            this._ring.put(hash("shard-" + s + "#" + v), s);
+      this._pool = Executors.newFixedThreadPool(shards.size(), r -> {
+         Thread t = new Thread(r, "shard-fanout");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * Connects to every shard database on localhost.
+    *
+    * @throws java.sql.SQLException when a shard could not be reached
+    */
+   public static ShardRouter connect(String dbport, String user, List<String> dbnames) throws SQLException {
+      List<ProfNetwork> shards = new ArrayList<ProfNetwork>();
+      for (String dbname : dbnames)
+         shards.add(new ProfNetwork(dbname, dbport, user, ""));
+      return new ShardRouter(shards);
+   }//end connect
+
+   /**
+    * @return the index of the shard owning a user's rows
+    */
+   public int shardOf(String userId){
+      Map.Entry<Long, Integer> e = this._ring.ceilingEntry(hash(userId.trim()));
+      return e != null ? e.getValue() : this._ring.firstEntry().getValue();
+   }//end shardOf
+
+   /**
+    * @return the session of the shard owning a user's rows
+    */
+   public ProfNetwork shard(String userId){
+      return this._shards.get(shardOf(userId));
+   }//end shard
+
+   public void sendMessage(String sender, String receiver, String contents) throws SQLException {
+      ProfNetwork shard = shard(sender);
+      synchronized (shard){
+         ProfNetwork.sendMessage(shard, sender, receiver, contents);
+      }
+   }//end sendMessage
+
+   public List<List<String>> sentMessages(String uid) throws SQLException {
+      ProfNetwork shard = shard(uid);
+      synchronized (shard){
+         return ProfNetwork.sentMessages(shard, uid);
+      }
+   }//end sentMessages
+
+   /**
+    * Received messages may have been sent from users on any shard. The
+    * fan out is admitted once, as one operation, and the local message
+    * archive is merged once into the combined rows.
+    */
+   public List<List<String>> receivedMessages(final String uid) throws SQLException {
+      AdmissionControl.Ticket ticket = ProfNetwork.admission.admit(uid, AdmissionControl.Cost.EXPENSIVE);
+      try{
+         List<List<String>> result = new ArrayList<List<String>>();
+         for (List<List<String>> part : fanOut(shard -> ProfNetwork.queryReceivedMessages(shard, uid)))
+            result.addAll(part);
+         return ProfNetwork.withArchivedReceived(uid, result);
+      }finally{
+         ticket.release();
+      }//end try
+   }//end receivedMessages
+
+   public boolean requestConnection(String sender, String receiver) throws SQLException {
+      ProfNetwork shard = shard(receiver);
+      synchronized (shard){
+         return ProfNetwork.requestConnection(shard, sender, receiver);
+      }
+   }//end requestConnection
+
+   public boolean acceptRequest(String uid, String connection) throws SQLException {
+      ProfNetwork shard = shard(uid);
+      synchronized (shard){
+         return ProfNetwork.acceptRequest(shard, uid, connection);
+      }
+   }//end acceptRequest
+
+   /**
+    * Connections where uid is the connectionId may live on any shard. The
+    * fan out is admitted once, as one operation.
+    */
+   public List<String> friendIds(final String uid) throws SQLException {
+      AdmissionControl.Ticket ticket = ProfNetwork.admission.admit(uid, AdmissionControl.Cost.NORMAL);
+      try{
+         Set<String> friends = new LinkedHashSet<String>();
+         for (List<String> part : fanOut(shard -> ProfNetwork.queryFriendIds(shard, uid)))
+            friends.addAll(part);
+         return new ArrayList<String>(friends);
+      }finally{
+         ticket.release();
+      }//end try
+   }//end friendIds
+
+   /**
+    * A query to run against one shard.
+    */
+   interface ShardQuery<T> {
+      T run(ProfNetwork shard) throws SQLException;
+   }
+
+   // runs the query on every shard in parallel, results in shard order
+   private <T> List<T> fanOut(final ShardQuery<T> query) throws SQLException {
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for (final ProfNetwork shard : this._shards){
+         futures.add(this._pool.submit(new Callable<T>(){
+            public T call() throws SQLException {
+               synchronized (shard){
+                  return query.run(shard);
+               }
+            }
+         }));
+      }//end for
+
+      List<T> results = new ArrayList<T>();
+      try{
+         for (Future<T> f : futures)
+            results.add(f.get());
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted while waiting for shards", e);
+      }catch (ExecutionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause());
+      }//end try
+      return results;
+   }//end fanOut
+
+   /**
+    * Moves every user found on a shard the ring no longer assigns them to.
+    *
+    * @return the number of users moved
+    * @throws java.sql.SQLException when a move failed; users already moved stay moved
+    */
+   public int rebalance() throws SQLException {
+      int moved = 0;
+      for (int s = 0; s < this._shards.size(); s++){
+         List<List<String>> owners = this._shards.get(s).executeQueryAndReturnResult(
+            "SELECT DISTINCT senderId FROM MESSAGE UNION SELECT DISTINCT userId FROM CONNECTION_USR");
+         for (List<String> row : owners){
+            String user = row.get(0).trim();
+            int target = shardOf(user);
+            if (target != s){
+               moveUser(user, s, target);
+               moved++;
+            }//end if
+         }//end for
+      }//end for
+      return moved;
+   }//end rebalance
+
+   /**
+    * Copies a user's messages and connection rows to another shard, then
+    * deletes them from the old one.
+    *
+    * The rows are locked on the source (FOR UPDATE) until the target has
+    * committed the copy, and only the rows copied are deleted; rows written
+    * for the user in the meantime stay behind for the next rebalance. The
+    * copy is idempotent: a message the target already holds (same sender,
+    * receiver, send time and contents) and a pair it already holds are
+    * skipped. A failure after the target commit leaves the rows on both
+    * shards; moving the user again copies nothing and deletes the source rows.
+    *
+    * @throws java.sql.SQLException when the move failed
+    */
+   public void moveUser(String user, int from, int to) throws SQLException {
+      ProfNetwork source = this._shards.get(from);
+      ProfNetwork target = this._shards.get(to);
+
+      source.setAutoCommit(false);
+      try{
+         List<List<String>> messages = source.executeQueryAndReturnResult(String.format(
+            "SELECT msgId, senderId, receiverId, contents, sendTime, deleteStatus, status FROM MESSAGE WHERE senderId='%s' FOR UPDATE", user));
+         List<List<String>> connections = source.executeQueryAndReturnResult(String.format(
+            "SELECT userId, connectionId, status FROM CONNECTION_USR WHERE userId='%s' FOR UPDATE", user));
+
+         copy(target, messages, connections);
+
+         if (!messages.isEmpty()){
+            String[] ids = new String[messages.size()];
+            for (int i = 0; i < ids.length; i++)
+               ids[i] = messages.get(i).get(0).trim();
+            source.executePreparedAndReturnResult(
+               "DELETE FROM MESSAGE WHERE senderId=? AND msgId = ANY(?::int[])", user, (Object) ids);
+         }//end if
+         if (!connections.isEmpty()){
+            String[] pairs = new String[connections.size()];
+            for (int i = 0; i < pairs.length; i++)
+               pairs[i] = connections.get(i).get(1).trim();
+            source.executePreparedAndReturnResult(
+               "DELETE FROM CONNECTION_USR WHERE userId=? AND connectionId = ANY(?)", user, (Object) pairs);
+         }//end if
+         source.commit();
+      }catch (SQLException e){
+         source.rollback();
+         throw e;
+      }finally{
+         source.setAutoCommit(true);
+      }//end try
+   }//end moveUser
+
+   // inserts the rows read from the source shard into the target in one
+   // transaction, skipping those the target already holds
+   private static void copy(ProfNetwork target, List<List<String>> messages, List<List<String>> connections) throws SQLException {
+      target.setAutoCommit(false);
+      try{
+         if (!messages.isEmpty()){
+            // msgIds are per shard: allocate new ones above the target's max
+            target.executeUpdate("LOCK TABLE MESSAGE IN SHARE ROW EXCLUSIVE MODE");
+            for (List<String> m : messages){
+               String sender = quote(m.get(1)), receiver = quote(m.get(2));
+               String contents = quote(m.get(3)), sendTime = quote(m.get(4));
+               // HAVING, not WHERE: the aggregate row is produced even over no rows
+               target.executeUpdate(String.format(
+                  "INSERT INTO MESSAGE(msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) " +
+                  "SELECT COALESCE(MAX(msgId), 0) + 1, %s, %s, %s, %s, %s, %s FROM MESSAGE " +
+                  "HAVING NOT EXISTS (SELECT 1 FROM MESSAGE WHERE senderId=%s AND receiverId=%s AND sendTime=%s AND contents=%s)",
+                  sender, receiver, contents, sendTime, quote(m.get(5)), quote(m.get(6)),
+                  sender, receiver, sendTime, contents));
+            }//end for
+         }//end if
+         if (!connections.isEmpty()){
+            StringBuilder values = new StringBuilder();
+            for (List<String> c : connections){
+               if (values.length() > 0) values.append(", ");
+               values.append(String.format("(%s, %s, %s)", quote(c.get(0)), quote(c.get(1)), quote(c.get(2))));
+            }//end for
+            // a pair the target already holds keeps the target's row
+            target.executeUpdate("INSERT INTO CONNECTION_USR(userId, connectionId, status) VALUES " + values
+               + " ON CONFLICT DO NOTHING");
+         }//end if
+         target.commit();
+      }catch (SQLException e){
+         target.rollback();
+         throw e;
+      }finally{
+         target.setAutoCommit(true);
+      }//end try
+   }//end copy
+
+   /**
+    * Closes every shard session.
+    */
+   public void cleanup(){
+      this._pool.shutdown();
+      for (ProfNetwork shard : this._shards)
+         shard.cleanup();
+   }//end cleanup
+
+   // SQL literal for a value read back from a shard
+   private static String quote(String value){
+      return value == null ? "NULL" : "'" + value.replace("'", "''") + "'";
+   }//end quote
+
+   // first 8 bytes of the MD5 of the key
+   private static long hash(String key){
+      try{
+         byte[] d = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+         long h = 0;
+         for (int i = 0; i < 8; i++)
+            h = (h << 8) | (d[i] & 0xff);
+         return h;
+      }catch (NoSuchAlgorithmException e){
+         throw new IllegalStateException(e);
+      }//end try
+   }//end hash
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3){
+         System.err.println("Usage: java [-classpath <classpath>] " + ShardRouter.class.getName()
+            + " <port> <user> <db> [<db> ...]");
+         return;
+      }//end if
+
+      Class.forName("org.postgresql.Driver");
+      List<String> dbnames = new ArrayList<String>();
+      for (int i = 2; i < args.length; i++)
+         dbnames.add(args[i]);
+      ShardRouter router = connect(args[0], args[1], dbnames);
+      try{
+         int moved = router.rebalance();
+         System.out.println("Rebalanced " + dbnames.size() + " shard(s): " + moved + " user(s) moved");
+      }finally{
+         router.cleanup();
+      }//end try
+   }//end main
+
+}//end ShardRouter
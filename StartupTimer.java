@@ -0,0 +1,72 @@
+/*
+ * Startup timing
+ * =============================
+ *
+ * Records how long each phase of startup takes, on whichever thread it runs,
+ * and prints the breakdown:
+ *
+ *    Startup phases (ms)          start   took  thread
+ *    jvm                              0    180  main
+ *    driver                         180     35  main
+ *    ...
+ *
+ */
+
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-phase startup timer; safe to use from several threads.
+ */
+public class StartupTimer {
+
+   private final long _origin = System.nanoTime();
+
+   // time from JVM launch until this timer was created
+   private final long _jvmNanos;
+
+   private final List<Object[]> _phases = new ArrayList<Object[]>();   // name, start, end, thread
+
+   public StartupTimer(){
+      long launched = ManagementFactory.getRuntimeMXBean().getStartTime();
+      this._jvmNanos = Math.max(0, System.currentTimeMillis() - launched) * 1000000L;
+   }
+
+   /**
+    * @return the current time, to pass to record() when the phase ends
+    */
+   public long now(){
+      return System.nanoTime();
+   }//end now
+
+   /**
+    * Records a phase that started at the given now() value and ends now.
+    *
+    * @return the end of the phase, usable as the start of the next one
+    */
+   public synchronized long record(String phase, long start){
+      long end = System.nanoTime();
+      this._phases.add(new Object[] { phase, start, end, Thread.currentThread().getName() });
+      return end;
+   }//end record
+
+   /**
+    * Prints every phase recorded so far, with times since JVM launch.
+    */
+   public synchronized void report(PrintStream out){
+      out.println(String.format("%-24s %8s %6s  %s", "Startup phases (ms)", "start", "took", "thread"));
+      out.println(String.format("%-24s %8d %6d  %s", "jvm", 0, this._jvmNanos / 1000000, "main"));
+      long last = 0;
+      for (Object[] p : this._phases){
+         long start = this._jvmNanos + ((Long) p[1] - this._origin);
+         long end = this._jvmNanos + ((Long) p[2] - this._origin);
+         out.println(String.format("%-24s %8d %6d  %s", p[0], start / 1000000, (end - start) / 1000000, p[3]));
+         last = Math.max(last, end);
+      }//end for
+      out.println(String.format("%-24s %8d", "total", last / 1000000));
+   }//end report
+
+}//end StartupTimer
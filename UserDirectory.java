@@ -0,0 +1,127 @@
+/*
+ * User directory
+ * =============================
+ *
+ * Answers "does this userId exist?" without a database round trip for the
+ * users it knows: a Bloom filter screens the id, and its positives are
+ * confirmed against a bitset, over the shared UserIds dictionary, of every
+ * userId loaded from USR, plus the users created since. Only a yes is
+ * final; a no may be a user created by another instance, so callers
+ * confirm it against USR (see ProfNetwork.userExists).
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory set of userIds. Users are only ever added; a deleted user is
+ * handled by reloading the directory.
+ */
+public class UserDirectory {
+
+   // ~1% false positives at capacity with 10 bits and 7 probes per user
+   private static final int BITS_PER_USER = 10;
+   private static final int PROBES = 7;
+
+   // capacity kept above the loaded count for users created later
+   private static final int HEADROOM = 2;
+   private static final int MIN_USERS = 1024;
+
+   private final AtomicLongArray _bits;
+   private final long _numBits;
+
+   private final UserIds _dict;
+
+   // dictionary ids from the initial load, never modified afterwards; users
+   // added later are kept apart
+   private final BitSet _loaded = new BitSet();
+   private final Set<Integer> _added = ConcurrentHashMap.newKeySet();
+
+   private UserDirectory(UserIds dict, int[] ids){
+      long capacity = Math.max(MIN_USERS, (long) ids.length * HEADROOM);
+      this._numBits = ((capacity * BITS_PER_USER + 63) / 64) * 64;
+      this._bits = new AtomicLongArray((int) (this._numBits / 64));
+      this._dict = dict;
+      for (int id : ids){
+         this._loaded.set(id);
+         setBits(dict.name(id));
+      }//end for
+   }
+
+   /**
+    * Loads every userId from USR.
+    *
+    * @param esql the database session
+    * @return the populated directory
+    * @throws java.sql.SQLException when USR could not be read
+    */
+   public static UserDirectory load(ProfNetwork esql) throws SQLException {
+      int[] ids = esql.executeQueryAndReturnUserIds("SELECT userId FROM USR");
+      return new UserDirectory(ProfNetwork.userIds, ids);
+   }//end load
+
+   /**
+    * @return false if the user certainly does not exist; true if it may
+    */
+   public boolean mightExist(String userId){
+      long h = hash(userId.trim());
+      long h1 = h >>> 32, h2 = h & 0xffffffffL;
+      for (int i = 0; i < PROBES; i++){
+         long bit = Math.floorMod(h1 + i * h2, this._numBits);
+         if ((this._bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+            return false;
+      }//end for
+      return true;
+   }//end mightExist
+
+   /**
+    * @return true if the user is known to exist; false if it is not known
+    */
+   public boolean exists(String userId){
+      if (!mightExist(userId)) return false;
+      int id = this._dict.id(userId);
+      return id >= 0 && (this._loaded.get(id) || this._added.contains(id));
+   }//end exists
+
+   /**
+    * Records a newly created user.
+    */
+   public void add(String userId){
+      String id = userId.trim();
+      this._added.add(this._dict.intern(id));
+      setBits(id);
+   }//end add
+
+   private void setBits(String userId){
+      long h = hash(userId);
+      long h1 = h >>> 32, h2 = h & 0xffffffffL;
+      for (int i = 0; i < PROBES; i++){
+         long bit = Math.floorMod(h1 + i * h2, this._numBits);
+         int word = (int) (bit >>> 6);
+         long mask = 1L << (bit & 63);
+         long old;
+         do{
+            old = this._bits.get(word);
+         }while ((old & mask) == 0 && !this._bits.compareAndSet(word, old, old | mask));
+      }//end for
+   }//end setBits
+
+   // 64-bit FNV-1a over the UTF-8 bytes; the halves drive double hashing
+   private static long hash(String userId){
+      long h = 0xcbf29ce484222325L;
+      for (byte b : userId.getBytes(StandardCharsets.UTF_8)){
+         h ^= (b & 0xff);
+         h *= 0x100000001b3L;
+      }//end for
+      return h;
+   }//end hash
+
+}//end UserDirectory
@@ -0,0 +1,179 @@
+/*
+ * User id dictionary
+ * =============================
+ *
+ * One dense int per USR.userId, shared by the in-memory caches of the
+ * process (connection graph, directory, profile index, counters, activity
+ * stats), so each of them holds int ids instead of its own copy of every
+ * userId string.
+ *
+ * The userIds themselves are stored once, as UTF-8 bytes packed end to end
+ * in a byte arena, with an offset table per id and an open addressing hash
+ * table over the arena. Interning straight from result set bytes (see
+ * ProfNetwork.executeQueryAndReturnUserIds) never creates a String at all.
+ *
+ * Ids are never reused or removed; a deleted user keeps its id.
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Dictionary of userIds to dense ids 0..size()-1. Interning is serialized;
+ * lookups take no lock.
+ */
+public class UserIds {
+
+   // hash table slots hold id + 1, 0 marks an empty slot
+   private static final int EMPTY = 0;
+
+   // arrays are replaced, never shrunk, when they fill up; a reader reads
+   // _size first and only looks at ids below it, which were completely
+   // written before _size was published
+   private volatile byte[] _arena = new byte[1 << 12];
+   private volatile int[] _offsets = new int[257];
+   private volatile int[] _table = new int[512];
+   private volatile int _size;
+
+   /**
+    * @return the dense id of a userId, assigning the next one if it is new
+    */
+   public int intern(String userId){
+      byte[] bytes = userId.trim().getBytes(StandardCharsets.UTF_8);
+      return intern(bytes, 0, bytes.length);
+   }//end intern
+
+   /**
+    * Interns a userId given as UTF-8 bytes, such as a column read with
+    * ResultSet.getBytes. Blank padding around the id is ignored.
+    *
+    * @return the dense id of the userId
+    */
+   public int intern(byte[] bytes, int offset, int length){
+      int start = offset, end = offset + length;
+      while (start < end && (bytes[start] & 0xff) <= ' ') start++;
+      while (end > start && (bytes[end - 1] & 0xff) <= ' ') end--;
+
+      int id = find(bytes, start, end - start);
+      return id >= 0 ? id : add(bytes, start, end - start);
+   }//end intern
+
+   /**
+    * @return the dense id of a userId, or -1 if it was never interned
+    */
+   public int id(String userId){
+      byte[] bytes = userId.trim().getBytes(StandardCharsets.UTF_8);
+      return find(bytes, 0, bytes.length);
+   }//end id
+
+   /**
+    * @return the userId behind a dense id
+    * @throws java.lang.IndexOutOfBoundsException for an id never handed out
+    */
+   public String name(int id){
+      int n = this._size;
+      if (id < 0 || id >= n)
+         throw new IndexOutOfBoundsException("no user id " + id);
+      int[] offsets = this._offsets;
+      return new String(this._arena, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+   }//end name
+
+   /**
+    * @return the number of ids handed out
+    */
+   public int size(){
+      return this._size;
+   }//end size
+
+   /**
+    * @return id count and arena size, for reports
+    */
+   public String stats(){
+      int n = this._size;
+      return String.format("%d user ids, %.1f KB of names", n, this._offsets[n] / 1024.0);
+   }//end stats
+
+   // id of the bytes among the published ids, or -1
+   private int find(byte[] bytes, int start, int length){
+      int n = this._size;
+      int[] table = this._table;
+      byte[] arena = this._arena;
+      int[] offsets = this._offsets;
+      int mask = table.length - 1;
+      for (int slot = hash(bytes, start, length) & mask; ; slot = (slot + 1) & mask){
+         int entry = table[slot];
+         if (entry == EMPTY) return -1;
+         int id = entry - 1;
+         // slots of ids still being added are skipped like other keys
+         if (id < n && equal(arena, offsets[id], offsets[id + 1], bytes, start, length))
+            return id;
+      }//end for
+   }//end find
+
+   private synchronized int add(byte[] bytes, int start, int length){
+      // another thread may have added it since the unlocked lookup
+      int id = find(bytes, start, length);
+      if (id >= 0) return id;
+
+      id = this._size;
+      int[] offsets = this._offsets;
+      if (id + 2 > offsets.length)
+         this._offsets = offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      byte[] arena = this._arena;
+      int used = offsets[id];
+      if (used + length > arena.length)
+         this._arena = arena = Arrays.copyOf(arena, Math.max(arena.length * 2, used + length));
+      System.arraycopy(bytes, start, arena, used, length);
+      offsets[id + 1] = used + length;
+
+      int[] table = this._table;
+      if ((id + 1) * 2 > table.length)
+         this._table = table = rehash(table.length * 2, id);
+      place(table, hash(bytes, start, length), id);
+
+      this._size = id + 1;
+      return id;
+   }//end add
+
+   // a larger table holding ids 0..count-1
+   private int[] rehash(int capacity, int count){
+      int[] table = new int[capacity];
+      byte[] arena = this._arena;
+      int[] offsets = this._offsets;
+      for (int id = 0; id < count; id++)
+         place(table, hash(arena, offsets[id], offsets[id + 1] - offsets[id]), id);
+      return table;
+   }//end rehash
+
+   private static void place(int[] table, int hash, int id){
+      int mask = table.length - 1;
+      int slot = hash & mask;
+      while (table[slot] != EMPTY)
+         slot = (slot + 1) & mask;
+      table[slot] = id + 1;
+   }//end place
+
+   private static boolean equal(byte[] arena, int from, int to, byte[] bytes, int start, int length){
+      if (to - from != length) return false;
+      for (int i = 0; i < length; i++)
+         if (arena[from + i] != bytes[start + i])
+            return false;
+      return true;
+   }//end equal
+
+   // 32-bit FNV-1a with a final mix, since slots use the low bits
+   private static int hash(byte[] bytes, int start, int length){
+      int h = 0x811c9dc5;
+      for (int i = start; i < start + length; i++){
+         h ^= (bytes[i] & 0xff);
+         h *= 0x01000193;
+      }//end for
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      return h;
+   }//end hash
+
+}//end UserIds
@@ -0,0 +1,57 @@
+-- Cache coherence notifications
+--
+-- Each write to a table that the application caches publishes a NOTIFY on
+-- the 'profnetwork' channel. Every running instance LISTENs on that channel
+-- and invalidates or updates just the affected cache entries.
+--
+-- Payload: table|operation|key[|key...]
+--   usr|INSERT|<userId>
+--   connection_usr|UPDATE|<userId>|<connectionId>|<status>
+--   work_expr|UPDATE|<userId>
+--   educational_details|UPDATE|<userId>
+--   message|INSERT|<senderId>|<receiverId>|<status>
+
+CREATE OR REPLACE FUNCTION notify_profnetwork() RETURNS trigger AS $$
+DECLARE
+	r record;
+	payload text;
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		r := OLD;
+	ELSE
+		r := NEW;
+	END IF;
+
+	IF TG_TABLE_NAME = 'connection_usr' THEN
+		payload := concat_ws('|', TG_TABLE_NAME, TG_OP, trim(r.userId), trim(r.connectionId),
+			CASE WHEN TG_OP = 'DELETE' THEN 'Deleted' ELSE trim(r.status) END);
+	ELSIF TG_TABLE_NAME = 'message' THEN
+		payload := concat_ws('|', TG_TABLE_NAME, TG_OP, trim(r.senderId), trim(r.receiverId), trim(r.status));
+	ELSE
+		payload := concat_ws('|', TG_TABLE_NAME, TG_OP, trim(r.userId));
+	END IF;
+
+	PERFORM pg_notify('profnetwork', payload);
+	RETURN r;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS usr_notify ON USR;
+CREATE TRIGGER usr_notify AFTER INSERT OR UPDATE OR DELETE ON USR
+	FOR EACH ROW EXECUTE PROCEDURE notify_profnetwork();
+
+DROP TRIGGER IF EXISTS connection_usr_notify ON CONNECTION_USR;
+CREATE TRIGGER connection_usr_notify AFTER INSERT OR UPDATE OR DELETE ON CONNECTION_USR
+	FOR EACH ROW EXECUTE PROCEDURE notify_profnetwork();
+
+DROP TRIGGER IF EXISTS work_expr_notify ON WORK_EXPR;
+CREATE TRIGGER work_expr_notify AFTER INSERT OR UPDATE OR DELETE ON WORK_EXPR
+	FOR EACH ROW EXECUTE PROCEDURE notify_profnetwork();
+
+DROP TRIGGER IF EXISTS educational_details_notify ON EDUCATIONAL_DETAILS;
+CREATE TRIGGER educational_details_notify AFTER INSERT OR UPDATE OR DELETE ON EDUCATIONAL_DETAILS
+	FOR EACH ROW EXECUTE PROCEDURE notify_profnetwork();
+
+DROP TRIGGER IF EXISTS message_notify ON MESSAGE;
+CREATE TRIGGER message_notify AFTER INSERT OR UPDATE OR DELETE ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE notify_profnetwork();
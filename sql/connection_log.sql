@@ -0,0 +1,45 @@
+-- Change log for CONNECTION_USR
+--
+-- Every insert, update and delete on CONNECTION_USR is appended here with an
+-- increasing sequence number and the id of the writing transaction. The
+-- application stores a transaction id mark in its connection graph snapshot:
+-- the xmin of a snapshot taken before the graph last read the database, so
+-- every transaction below it had already ended. On startup it replays only
+-- the rows with txid at or above the mark, in sequence order, instead of
+-- rescanning CONNECTION_USR. A transaction that took its sequence numbers
+-- early but committed late is still caught, however long it ran.
+--
+-- Rows with a txid below the mark of the oldest snapshot in use can be
+-- deleted at any time.
+
+CREATE TABLE IF NOT EXISTS CONNECTION_LOG(
+	seq BIGSERIAL PRIMARY KEY,
+	userId text NOT NULL,
+	connectionId text NOT NULL,
+	status text NOT NULL,
+	changeTime timestamp NOT NULL DEFAULT now(),
+	txid bigint NOT NULL DEFAULT txid_current()
+);
+
+-- for logs created before the txid column
+ALTER TABLE CONNECTION_LOG ADD COLUMN IF NOT EXISTS txid bigint NOT NULL DEFAULT txid_current();
+
+CREATE INDEX IF NOT EXISTS connection_log_txid_idx ON CONNECTION_LOG(txid);
+
+CREATE OR REPLACE FUNCTION log_connection_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		INSERT INTO CONNECTION_LOG(userId, connectionId, status)
+		VALUES (OLD.userId, OLD.connectionId, 'Deleted');
+		RETURN OLD;
+	END IF;
+	INSERT INTO CONNECTION_LOG(userId, connectionId, status)
+	VALUES (NEW.userId, NEW.connectionId, NEW.status);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS connection_log_trigger ON CONNECTION_USR;
+CREATE TRIGGER connection_log_trigger
+	AFTER INSERT OR UPDATE OR DELETE ON CONNECTION_USR
+	FOR EACH ROW EXECUTE PROCEDURE log_connection_change();
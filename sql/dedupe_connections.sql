@@ -0,0 +1,18 @@
+-- One-off cleanup of duplicate connections
+--
+-- DELETES rows from CONNECTION_USR: of the rows for the same unordered pair
+-- of users, only one is kept, an accepted row over a pending one over
+-- anything else. Run it once, after taking a backup, before creating
+-- connection_pair_idx (sql/indexes.sql).
+
+BEGIN;
+
+DELETE FROM CONNECTION_USR WHERE ctid IN (
+	SELECT ctid FROM (
+		SELECT ctid, row_number() OVER (
+			PARTITION BY least(userId, connectionId), greatest(userId, connectionId)
+			ORDER BY status = 'Accept' DESC, status = 'Request' DESC) AS n
+		FROM CONNECTION_USR) ranked
+	WHERE n > 1);
+
+COMMIT;
@@ -0,0 +1,15 @@
+-- Supporting indexes for the application's access paths
+
+-- Conversation view: all messages between two users in time order. Keyed on
+-- the unordered pair so both directions of the thread are one range scan;
+-- msgId breaks sendTime ties for keyset paging.
+CREATE INDEX IF NOT EXISTS message_conversation_idx
+	ON MESSAGE (least(senderId, receiverId), greatest(senderId, receiverId), sendTime, msgId);
+
+-- Connections and requests: at most one CONNECTION_USR row per unordered
+-- pair of users, whichever of them asked. requestConnection and
+-- addConnection already check for the pair before inserting; this index
+-- also turns two racing inserts into one. Creating it fails while
+-- duplicates exist: run sql/dedupe_connections.sql first.
+CREATE UNIQUE INDEX IF NOT EXISTS connection_pair_idx
+	ON CONNECTION_USR (least(userId, connectionId), greatest(userId, connectionId));